@@ -0,0 +1,31 @@
+package ru.itmo.mse.asurkis.bench;
+
+import ru.itmo.mse.asurkis.Messages.ArrayMessage;
+
+import java.util.Random;
+
+/**
+ * Общие для бенчмарков входные данные
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * Случайные числа обоих знаков, с фиксированным seed для воспроизводимости
+     */
+    static int[] randomArray(int size) {
+        Random random = new Random(42);
+        int[] arr = new int[size];
+        for (int i = 0; i < size; i++)
+            arr[i] = random.nextInt();
+        return arr;
+    }
+
+    static ArrayMessage randomMessage(int size) {
+        ArrayMessage.Builder builder = ArrayMessage.newBuilder();
+        for (int x : randomArray(size))
+            builder.addX(x);
+        return builder.build();
+    }
+}
@@ -0,0 +1,25 @@
+package ru.itmo.mse.asurkis.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск бенчмарков с профилировщиком GC (скорость и объём выделения памяти на операцию).
+ * Принимает те же аргументы, что и {@code org.openjdk.jmh.Main}, например {@code SortBenchmark -p size=1000}.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                // Для SortStrategy.VECTOR, без модуля она сортирует без SIMD
+                .jvmArgsPrepend("--add-modules=jdk.incubator.vector")
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+}
@@ -0,0 +1,61 @@
+package ru.itmo.mse.asurkis.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.itmo.mse.asurkis.Messages.ArrayMessage;
+import ru.itmo.mse.asurkis.ServerUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полная обработка запроса в памяти: разбор, сортировка и сериализация.
+ * Разница с {@link SortBenchmark} — стоимость protobuf.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"100", "1000", "10000", "100000"})
+    public int size;
+
+    private byte[] requestBytes;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setup() {
+        requestBytes = BenchmarkData.randomMessage(size).toByteArray();
+        // Ответ может быть длиннее запроса на размер заголовка
+        heapBuffer = ByteBuffer.allocate(requestBytes.length + 4);
+        directBuffer = ByteBuffer.allocateDirect(requestBytes.length + 4);
+    }
+
+    /**
+     * Исходный путь через {@link ArrayMessage} и builder
+     */
+    @Benchmark
+    public byte[] message() throws IOException {
+        ArrayMessage payload = ArrayMessage.parseFrom(requestBytes);
+        return ServerUtil.processPayload(payload).toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer heapByteBuffer() throws IOException {
+        return processInPlace(heapBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer directByteBuffer() throws IOException {
+        return processInPlace(directBuffer);
+    }
+
+    private ByteBuffer processInPlace(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.put(requestBytes);
+        return ServerUtil.processPayload(buffer);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.itmo.mse.asurkis.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.itmo.mse.asurkis.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запрос-ответ через loopback для каждой архитектуры сервера: один клиент, один запрос за раз.
+ * Пропускная способность и распределение задержки одного запроса.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({"blocking", "nonblocking", "async", "virtual"})
+    public String server;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private Thread serverThread;
+    private Socket socket;
+    private DataInputStream dis;
+    private DataOutputStream dos;
+    private byte[] requestBytes;
+    private byte[] responseBytes;
+
+    @FunctionalInterface
+    private interface ServerStart {
+        void start() throws Exception;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        ServerStart start = switch (server) {
+            case "blocking" -> () -> new BlockingServer(port).start(1);
+            case "nonblocking" -> () -> new NonBlockingServer(port).start(1);
+            case "async" -> () -> new AsyncServer(port).start(1);
+            case "virtual" -> () -> new VirtualThreadServer(port).start(1);
+            default -> throw new IllegalArgumentException(server);
+        };
+        serverThread = new Thread(() -> {
+            try {
+                start.start();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serverThread.start();
+
+        socket = connect(port);
+        socket.setTcpNoDelay(true);
+        dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        requestBytes = BenchmarkData.randomMessage(size).toByteArray();
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        // Сервер ждал одного клиента и завершится после его отключения
+        socket.close();
+        serverThread.join();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        dos.writeInt(requestBytes.length);
+        dos.write(requestBytes);
+        dos.flush();
+
+        int responseSize = dis.readInt();
+        if (responseBytes == null || responseBytes.length != responseSize)
+            responseBytes = new byte[responseSize];
+        dis.readFully(responseBytes);
+        return responseBytes;
+    }
+}
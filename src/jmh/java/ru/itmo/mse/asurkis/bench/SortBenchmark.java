@@ -0,0 +1,62 @@
+package ru.itmo.mse.asurkis.bench;
+
+import org.openjdk.jmh.annotations.*;
+import ru.itmo.mse.asurkis.ServerUtil;
+import ru.itmo.mse.asurkis.SortStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость одной сортировки без разбора и сериализации.
+ * Каждая операция включает копирование исходного массива, его стоимость видна в {@link #copyOnly()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * {@code quadratic} не включён по умолчанию: на больших размерах он работает минутами
+     */
+    @Param({"intro", "radix", "parallel", "vector", "auto"})
+    public String strategy;
+
+    private int[] source;
+    private int[] arr;
+    private SortStrategy sortStrategy;
+
+    @Setup
+    public void setup() {
+        source = BenchmarkData.randomArray(size);
+        arr = new int[size];
+        sortStrategy = SortStrategy.byName(strategy);
+    }
+
+    @Benchmark
+    public int[] strategy() {
+        System.arraycopy(source, 0, arr, 0, size);
+        sortStrategy.sort(arr);
+        return arr;
+    }
+
+    /**
+     * Стратегия, которую использует сервер (задаётся {@code -jvmArgs -Dsort=...})
+     */
+    @Benchmark
+    public int[] sortInPlace() {
+        System.arraycopy(source, 0, arr, 0, size);
+        ServerUtil.sortInPlace(arr);
+        return arr;
+    }
+
+    @Benchmark
+    public int[] copyOnly() {
+        System.arraycopy(source, 0, arr, 0, size);
+        return arr;
+    }
+}
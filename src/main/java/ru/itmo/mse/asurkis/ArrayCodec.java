@@ -0,0 +1,238 @@
+package ru.itmo.mse.asurkis;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Потоковое (де)кодирование {@code ArrayMessage} напрямую между {@link ByteBuffer} и {@code int[]}.
+ * В отличие от сгенерированного protobuf кода не создаёт ни сообщений, ни списков с упакованными в объекты числами.
+ * Читает поле {@code x} как в обычном, так и в packed виде, пишет в обычном (как и protobuf для proto2).
+ * <p>
+ * Для компактных форматов {@link WireFormat} есть методы {@code *Raw} (массив int32 little-endian)
+ * и {@code *Delta} (разности соседних чисел в zigzag-varint).
+ * <p>
+ * Экземпляр хранит переиспользуемый массив, поэтому у каждого потока он свой, см. {@link #get()}.
+ */
+public final class ArrayCodec {
+    private static final int FIELD_X = 1;
+
+    static final int WIRETYPE_VARINT = 0;
+    static final int WIRETYPE_FIXED64 = 1;
+    static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    static final int WIRETYPE_FIXED32 = 5;
+
+    static final int TAG_X = FIELD_X << 3 | WIRETYPE_VARINT;
+    static final int TAG_X_PACKED = FIELD_X << 3 | WIRETYPE_LENGTH_DELIMITED;
+
+    private static final ThreadLocal<ArrayCodec> INSTANCE = ThreadLocal.withInitial(ArrayCodec::new);
+
+    private int[] values = new int[ServerUtil.START_CAPACITY_BYTES];
+
+    private ArrayCodec() {
+    }
+
+    public static ArrayCodec get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Массив, в который {@link #decode(ByteBuffer)} положил числа.
+     * Действителен до следующего вызова {@code decode} в этом потоке.
+     */
+    public int[] values() {
+        return values;
+    }
+
+    /**
+     * Прочитать сообщение от {@code position} до {@code limit}
+     *
+     * @return количество прочитанных чисел, они лежат в начале {@link #values()}
+     */
+    public int decode(ByteBuffer buf) throws InvalidProtocolBufferException {
+        try {
+            int count = 0;
+            while (buf.hasRemaining()) {
+                int tag = (int) readVarint(buf);
+                if (tag == TAG_X) {
+                    count = append(count, (int) readVarint(buf));
+                } else if (tag == TAG_X_PACKED) {
+                    int end = readLength(buf);
+                    while (buf.position() < end)
+                        count = append(count, (int) readVarint(buf));
+                    if (buf.position() != end)
+                        throw new InvalidProtocolBufferException("Packed field overruns its length");
+                } else {
+                    skipField(buf, tag);
+                }
+            }
+            return count;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidProtocolBufferException("Truncated message");
+        }
+    }
+
+    /**
+     * Размер сообщения из первых {@code count} чисел {@link #values()} в байтах
+     */
+    public int encodedSize(int count) {
+        int size = count; // по байту на тег каждого числа
+        for (int i = 0; i < count; i++)
+            size += varintSize(values[i]);
+        return size;
+    }
+
+    /**
+     * Записать первые {@code count} чисел {@link #values()} в буфер с текущей позиции
+     */
+    public void encode(ByteBuffer buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.put((byte) TAG_X);
+            writeVarint(buf, values[i]);
+        }
+    }
+
+    /**
+     * Прочитать массив int32 little-endian от {@code position} до {@code limit}: одно копирование без разбора
+     *
+     * @return количество прочитанных чисел, они лежат в начале {@link #values()}
+     */
+    public int decodeRaw(ByteBuffer buf) throws InvalidProtocolBufferException {
+        if (buf.remaining() % Integer.BYTES != 0)
+            throw new InvalidProtocolBufferException("Raw array of " + buf.remaining() + " bytes");
+        int count = buf.remaining() / Integer.BYTES;
+        ensureCapacity(count);
+        buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, 0, count);
+        buf.position(buf.limit());
+        return count;
+    }
+
+    public static int encodedSizeRaw(int count) {
+        return count * Integer.BYTES;
+    }
+
+    public void encodeRaw(ByteBuffer buf, int count) {
+        buf.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(values, 0, count);
+        buf.position(buf.position() + count * Integer.BYTES);
+    }
+
+    /**
+     * Размер отсортированного массива в разностях: у близких чисел разность занимает байт-два вместо пяти-десяти
+     */
+    public int encodedSizeDelta(int count) {
+        int size = 0;
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            size += unsignedVarintSize(zigzag(values[i] - prev));
+            prev = values[i];
+        }
+        return size;
+    }
+
+    /**
+     * Записать каждое число разностью с предыдущим (первое — с нулём) в zigzag-varint.
+     * Разность может переполниться, но при чтении переполнится обратно
+     */
+    public void encodeDelta(ByteBuffer buf, int count) {
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            writeUnsignedVarint(buf, zigzag(values[i] - prev));
+            prev = values[i];
+        }
+    }
+
+    public int decodeDelta(ByteBuffer buf) throws InvalidProtocolBufferException {
+        try {
+            int count = 0;
+            int prev = 0;
+            while (buf.hasRemaining()) {
+                int v = (int) readVarint(buf);
+                prev += (v >>> 1) ^ -(v & 1);
+                count = append(count, prev);
+            }
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidProtocolBufferException("Truncated message");
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > values.length)
+            values = new int[ServerUtil.findCapacity(values.length, count)];
+    }
+
+    private int append(int count, int value) {
+        if (count == values.length) {
+            int[] newValues = new int[values.length * 2];
+            System.arraycopy(values, 0, newValues, 0, count);
+            values = newValues;
+        }
+        values[count] = value;
+        return count + 1;
+    }
+
+    private static int readLength(ByteBuffer buf) throws InvalidProtocolBufferException {
+        long length = readVarint(buf);
+        if (length < 0 || length > buf.remaining())
+            throw new InvalidProtocolBufferException("Invalid length " + length);
+        return buf.position() + (int) length;
+    }
+
+    private static void skipField(ByteBuffer buf, int tag) throws InvalidProtocolBufferException {
+        switch (tag & 7) {
+            case WIRETYPE_VARINT -> readVarint(buf);
+            case WIRETYPE_FIXED64 -> buf.position(buf.position() + 8);
+            case WIRETYPE_LENGTH_DELIMITED -> buf.position(readLength(buf));
+            case WIRETYPE_FIXED32 -> buf.position(buf.position() + 4);
+            default -> throw new InvalidProtocolBufferException("Unsupported wire type in tag " + tag);
+        }
+    }
+
+    static long readVarint(ByteBuffer buf) throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        throw new InvalidProtocolBufferException("Malformed varint");
+    }
+
+    /**
+     * Отрицательные int32 protobuf кодирует как 64-битные, т.е. в 10 байт
+     */
+    static int varintSize(int value) {
+        if (value < 0) return 10;
+        if (value < 1 << 7) return 1;
+        if (value < 1 << 14) return 2;
+        if (value < 1 << 21) return 3;
+        if (value < 1 << 28) return 4;
+        return 5;
+    }
+
+    static int unsignedVarintSize(int value) {
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    static void writeUnsignedVarint(ByteBuffer buf, int value) {
+        writeVarint(buf, value & 0xFFFFFFFFL);
+    }
+
+    static void writeVarint(ByteBuffer buf, int value) {
+        writeVarint(buf, (long) value);
+    }
+
+    private static void writeVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+}
@@ -2,17 +2,22 @@ package ru.itmo.mse.asurkis;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AsyncServer {
-    public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        args = Options.parse(args);
         int port = Integer.parseInt(args[0]);
         int nClients = Integer.parseInt(args[1]);
         new AsyncServer(port).start(nClients);
@@ -27,67 +32,218 @@ public class AsyncServer {
         this.port = port;
         Runtime runtime = Runtime.getRuntime();
         int nProcessors = runtime.availableProcessors();
-        workerPool = Executors.newFixedThreadPool(nProcessors);
+        workerPool = ServerUtil.newWorkerPool(nProcessors);
 
-        ExecutorService asyncPool = Executors.newSingleThreadExecutor();
-        channelGroup = AsynchronousChannelGroup.withThreadPool(asyncPool);
+        // Обработчики завершения разных подключений, а также чтения и записи одного подключения
+        // выполняются параллельно на потоках группы
+        int nThreads = Options.getInt("async-threads", Math.max(1, nProcessors / 2));
+        channelGroup = nThreads > 0
+                ? AsynchronousChannelGroup.withFixedThreadPool(nThreads, Executors.defaultThreadFactory())
+                : AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(), 1);
     }
 
-    private final AtomicInteger remainingClients = new AtomicInteger();
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
 
-    public void start(int nClients) throws IOException, ExecutionException, InterruptedException {
-        System.out.println("processing_ns,response_ns");
-        remainingClients.set(nClients);
-        try (AsynchronousServerSocketChannel serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup)) {
-            serverSocketChannel.bind(new InetSocketAddress(port));
+    /**
+     * Открытые подключения, нужны только для закрытия простаивающих
+     */
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
 
-            for (int i = 0; i < nClients; i++) {
-                Future<AsynchronousSocketChannel> future = serverSocketChannel.accept();
-                AsynchronousSocketChannel channel = future.get();
-                Client client = new Client(channel);
-                client.start();
+    public void start(int nClients) throws IOException, InterruptedException {
+        List<AsynchronousServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            for (int i = 0; i < ServerUtil.ACCEPTORS; i++)
+                listeners.add(ServerUtil.bindListener(AsynchronousServerSocketChannel.open(channelGroup), port));
+        } catch (IOException e) {
+            ServerUtil.closeAll(listeners).close();
+            throw e;
+        }
+        // Сокеты закрываются после приёма последнего клиента или по сигналу завершения
+        lifecycle.start(nClients, ServerUtil.closeAll(listeners), workerPool);
+        if (ServerLifecycle.IDLE_TIMEOUT_MS > 0) startIdleSweeper();
+
+        // Подключения принимают обработчики завершения на потоках группы, а не ожидание каждого accept
+        // в одном потоке: следующий accept ставится сразу, как только пришло подключение
+        AcceptHandler acceptHandler = new AcceptHandler();
+        for (AsynchronousServerSocketChannel listener : listeners)
+            listener.accept(listener, acceptHandler);
+
+        // Ждём, пока все операции не завершатся. Без этого при выключенных assert процесс завершался сразу
+        // после приёма подключений: потоки группы каналов ещё могли быть не созданы
+        channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, AsynchronousServerSocketChannel> {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, AsynchronousServerSocketChannel listener) {
+            int connectionId = lifecycle.clientAccepted();
+            if (lifecycle.shouldAccept()) listener.accept(listener, this);
+            try {
+                Client client = new Client(channel, connectionId);
+                clients.add(client);
+                client.startConnection();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
 
-        // Ждём, пока все операции не завершатся
-        assert channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        @Override
+        public void failed(Throwable throwable, AsynchronousServerSocketChannel listener) {
+            // Сокет закрыт по сигналу завершения или после приёма последнего клиента через другой сокет
+            if (throwable instanceof AsynchronousCloseException && !lifecycle.shouldAccept()) return;
+            throw new RuntimeException(throwable);
+        }
+    }
+
+    private void startIdleSweeper() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periodMs = Math.max(1, ServerLifecycle.IDLE_TIMEOUT_MS / 2);
+        sweeper.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            for (Client client : clients) {
+                if (client.isIdle(now)) client.closeChannel();
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
     }
 
-    private class Client implements Closeable {
+    private class Client implements Closeable, WorkerTask.Source {
+        private static final HandshakeHandler HANDSHAKE_HANDLER = new HandshakeHandler();
+        private static final HandshakeReplyHandler HANDSHAKE_REPLY_HANDLER = new HandshakeReplyHandler();
         private static final HeaderHandler HEADER_HANDLER = new HeaderHandler();
         private static final BodyHandler BODY_HANDLER = new BodyHandler();
         private static final ResponseHandler RESPONSE_HANDLER = new ResponseHandler();
 
         private final AsynchronousSocketChannel channel;
+        private final long id;
+        private final RequestQueue requests = new RequestQueue(ServerUtil.MAX_IN_FLIGHT);
+
+        // Буфер читаемого запроса, после прочтения переходит в Request.
+        // Выделим заранее память, будем увеличивать количество, если понадобится.
+        // Ответы пишутся из буферов своих запросов, поэтому чтение следующего запроса идёт одновременно с записью.
+        // Буфер меняют только обработчики чтения: одновременно идёт не больше одного чтения,
+        // а возобновляющий чтение обработчик записи видит буфер через синхронизацию RequestQueue
+        private ByteBuffer buffer;
 
-        // Выделим заранее память, будем увеличивать количество, если понадобится
-        private ByteBuffer buffer = ByteBuffer.allocate(ServerUtil.START_CAPACITY_BYTES);
+        // Ответы текущей записи, ими пользуется только тот, кто сейчас пишет. Больше MAX_IN_FLIGHT ответов не накопится
+        private final Request[] writeBatch = new Request[ServerUtil.MAX_IN_FLIGHT];
+        private final ByteBuffer[] writeBuffers = new ByteBuffer[ServerUtil.MAX_IN_FLIGHT];
+        private int writeCount;
 
-        private final Metrics metrics = new Metrics();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean inputClosed = false;
+        private volatile long lastActivityNs = System.nanoTime();
+        // Меняется только рукопожатием до первого запроса
+        private WireFormat format = WireFormat.PROTOBUF;
+        // Для StageTracer: когда прочитан заголовок читаемого запроса и за сколько чтений.
+        // Меняются только обработчиками чтения, которые не выполняются одновременно
+        private long headerReadNs;
+        private int nReads;
 
-        private Client(AsynchronousSocketChannel channel) {
+        private Client(AsynchronousSocketChannel channel, long id) throws IOException {
             this.channel = channel;
+            this.id = id;
+            buffer = BufferPool.SHARED.lease(ServerUtil.START_CAPACITY_BYTES);
+        }
+
+        /**
+         * Первый байт подключения: либо рукопожатие {@link WireFormat}, либо начало размера первого кадра
+         */
+        private void startConnection() {
+            nReads = 0;
+            buffer.clear();
+            buffer.limit(1);
+            channel.read(buffer, this, HANDSHAKE_HANDLER);
+        }
+
+        private void onReadFirstByte(int bytesRead) throws IOException {
+            lastActivityNs = System.nanoTime();
+            nReads++;
+            if (bytesRead == -1) {
+                close();
+                return;
+            }
+            int first = buffer.get(0) & 0xFF;
+            if (!WireFormat.isHandshake(first)) {
+                buffer.limit(4);
+                channel.read(buffer, this, HEADER_HANDLER);
+                return;
+            }
+            try {
+                format = WireFormat.byHandshake(first);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                close();
+                return;
+            }
+            // Запросы клиент отправит только после подтверждения, читать их начнём тогда же
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) first}), this, HANDSHAKE_REPLY_HANDLER);
         }
 
         private void start() {
+            nReads = 0;
             buffer.clear();
             buffer.limit(4);
             channel.read(buffer, this, HEADER_HANDLER);
         }
 
+        /**
+         * Подключение простаивает, если по нему давно ничего не приходило и ему ничего не нужно отправить
+         */
+        private boolean isIdle(long now) {
+            return now - lastActivityNs > TimeUnit.MILLISECONDS.toNanos(ServerLifecycle.IDLE_TIMEOUT_MS)
+                    && requests.isEmpty();
+        }
+
+        /**
+         * Закрыть канал из чужого потока. Ожидающее чтение завершится с {@link AsynchronousCloseException},
+         * и уже обработчик освободит ресурсы подключения
+         */
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         @Override
         public void close() throws IOException {
+            // Закрыть могут и обработчик чтения, и обработчик записи
+            if (!closed.compareAndSet(false, true)) return;
+            clients.remove(this);
             channel.close();
+            // Буферы отправляемых и обрабатываемых запросов вернут в пул владелец записи и worker'ы
+            requests.close();
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
 
-            if (remainingClients.decrementAndGet() == 0) {
+            if (lifecycle.clientClosed()) {
                 workerPool.shutdown();
                 channelGroup.shutdown();
+                MetricsRecorder.finish();
+                System.err.println(BufferPool.SHARED);
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
 
         private void onReadSize(int bytesRead) throws IOException {
+            lastActivityNs = System.nanoTime();
+            nReads++;
             if (bytesRead == -1) {
-                close();
+                // Ответы на уже прочитанные запросы ещё отправляются, закроет тогда обработчик записи
+                inputClosed = true;
+                if (requests.isEmpty()) close();
                 return;
             }
             if (buffer.remaining() > 0) {
@@ -98,41 +254,162 @@ public class AsyncServer {
 
             buffer.flip();
             int size = buffer.getInt();
-            buffer = ServerUtil.ensureLimit(buffer, size);
+            headerReadNs = StageTracer.now();
+            try {
+                buffer = BufferPool.SHARED.ensureLimit(buffer, size);
+            } catch (IOException e) {
+                // Размер отрицательный или больше допустимого для подключения, дальше читать запрос бессмысленно
+                System.err.println(e.getMessage());
+                close();
+                return;
+            }
             channel.read(buffer, this, BODY_HANDLER);
         }
 
-        private void onReadArray() {
+        private void onReadArray() throws IOException {
+            nReads++;
             if (buffer.remaining() > 0) {
                 channel.read(buffer, this, BODY_HANDLER);
                 return;
             }
             assert buffer.remaining() == 0;
-            metrics.requestReceived = System.nanoTime();
-            workerPool.submit(this::processRequest);
+            Request request = new Request(buffer);
+            request.metrics.requestReceived = System.nanoTime();
+            request.metrics.connectionId = id;
+            request.metrics.payloadBytes = buffer.limit();
+            request.metrics.headerRead = headerReadNs;
+            request.metrics.nReads = nReads;
+            lifecycle.requestReceived();
+            // Следующий запрос читаем, не дожидаясь ответа на этот.
+            // Буфер для него нужен до добавления в очередь: после этого чтение может возобновить поток записи
+            buffer = BufferPool.SHARED.lease(ServerUtil.START_CAPACITY_BYTES);
+
+            // Запрос должен попасть в очередь раньше, чем worker отметит его обработанным
+            boolean readMore = requests.add(request);
+            // После сигнала завершения новые запросы не читаем, подключение закроется после последнего ответа
+            if (lifecycle.isStopping()) inputClosed = true;
+            request.metrics.enqueued = StageTracer.now();
+            ServerUtil.execute(workerPool, new WorkerTask(() -> processRequest(request), () -> rejectRequest(request), this));
+            // Пул мог отложить запрос, тогда следующее чтение начнёт resumeReading
+            if (readMore && !inputClosed && requests.continueReading())
+                start();
+        }
+
+        @Override
+        public void pauseReading() {
+            requests.park();
+        }
+
+        @Override
+        public void resumeReading() {
+            if (requests.unpark() && !inputClosed)
+                start();
+        }
+
+        /**
+         * Отправить одной gathering-записью все готовые по порядку ответы.
+         * Вызывает только владелец записи из RequestQueue, поэтому массивы для записи общие на подключение
+         */
+        private void startWrite() {
+            writeCount = requests.ready(writeBatch);
+            // Подключение закрыто, готовые ответы уже вернулись в пул
+            if (writeCount == 0) return;
+            for (int i = 0; i < writeCount; i++)
+                writeBuffers[i] = writeBatch[i].buffer;
+            channel.write(writeBuffers, 0, writeCount, 0, TimeUnit.MILLISECONDS, this, RESPONSE_HANDLER);
         }
 
         private void onWriteResponse() {
-            if (buffer.remaining() > 0) {
-                channel.write(buffer, this, RESPONSE_HANDLER);
+            int n = writeCount;
+            int sent = 0;
+            while (sent < n && writeBuffers[sent].remaining() == 0) sent++;
+            // Ссылки убираем до poll: после последнего ответа владельцем записи может стать worker,
+            // и массивы перейдут к нему
+            Arrays.fill(writeBuffers, 0, n, null);
+            Arrays.fill(writeBatch, sent, n, null);
+            boolean owner = true;
+            for (int i = 0; i < sent && owner; i++) {
+                Request request = writeBatch[i];
+                writeBatch[i] = null;
+                request.metrics.responseSent = System.nanoTime();
+                lifecycle.responseSent(request.metrics);
+                BufferPool.SHARED.release(request.buffer);
+                request.buffer = null;
+                // Владение отпускает только последний ответ или закрытое подключение, тогда остальные уже в пуле
+                owner = requests.poll() != null;
+            }
+
+            if (!owner && inputClosed && requests.isEmpty()) {
+                closeQuietly();
                 return;
             }
-            assert buffer.remaining() == 0;
-            metrics.responseSent = System.nanoTime();
-            ServerUtil.printMetrics(metrics);
-            start();
+            if (!inputClosed && requests.resumeReading())
+                start();
+            // Остаток недописанного ответа и ответы, готовые к этому моменту
+            if (owner)
+                startWrite();
+        }
+
+        private void onWriteFailed(Throwable throwable) {
+            Arrays.fill(writeBatch, 0, writeCount, null);
+            Arrays.fill(writeBuffers, 0, writeCount, null);
+            requests.abortWrite();
+            handleFailure(throwable, this);
         }
 
-        private void processRequest() {
+        private void processRequest(Request request) {
             try {
-                metrics.processingStart = System.nanoTime();
-                buffer = ServerUtil.processPayload(buffer);
-                metrics.processingFinish = System.nanoTime();
-                channel.write(buffer, this, RESPONSE_HANDLER);
+                request.metrics.processingStart = System.nanoTime();
+                request.buffer = ServerUtil.processPayload(request.buffer, format, request.metrics);
+                request.metrics.processingFinish = System.nanoTime();
+                onProcessed(request);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+
+        /**
+         * Пул перегружен: вместо ответа отправляем кадр ошибки в буфере запроса
+         */
+        private void rejectRequest(Request request) {
+            request.metrics.rejected = true;
+            request.buffer = ServerUtil.overloadedResponse(request.buffer);
+            onProcessed(request);
+        }
+
+        private void onProcessed(Request request) {
+            if (requests.complete(request) != null)
+                startWrite();
+        }
+    }
+
+    private static class HandshakeHandler implements CompletionHandler<Integer, Client> {
+        @Override
+        public void completed(Integer bytesRead, Client client) {
+            try {
+                client.onReadFirstByte(bytesRead);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void failed(Throwable throwable, Client client) {
+            handleFailure(throwable, client);
+        }
+    }
+
+    private static class HandshakeReplyHandler implements CompletionHandler<Integer, Client> {
+        @Override
+        public void completed(Integer bytesWritten, Client client) {
+            // Асинхронная запись завершается, только записав хотя бы байт, а больше в подтверждении нет
+            client.start();
+        }
+
+        @Override
+        public void failed(Throwable throwable, Client client) {
+            handleFailure(throwable, client);
+        }
     }
 
     private static class HeaderHandler implements CompletionHandler<Integer, Client> {
@@ -147,34 +424,49 @@ public class AsyncServer {
 
         @Override
         public void failed(Throwable throwable, Client client) {
-            // Не обрабатываем в рамках эксперимента
-            throw new RuntimeException(throwable);
+            handleFailure(throwable, client);
         }
     }
 
     private static class BodyHandler implements CompletionHandler<Integer, Client> {
         @Override
         public void completed(Integer bytesRead, Client client) {
-            client.onReadArray();
+            try {
+                client.onReadArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         @Override
         public void failed(Throwable throwable, Client client) {
-            // Не обрабатываем в рамках эксперимента
-            throw new RuntimeException(throwable);
+            handleFailure(throwable, client);
         }
     }
 
-    private static class ResponseHandler implements CompletionHandler<Integer, Client> {
+    private static class ResponseHandler implements CompletionHandler<Long, Client> {
         @Override
-        public void completed(Integer bytesWritten, Client client) {
+        public void completed(Long bytesWritten, Client client) {
             client.onWriteResponse();
         }
 
         @Override
         public void failed(Throwable throwable, Client client) {
-            // Не обрабатываем в рамках эксперимента
-            throw new RuntimeException(throwable);
+            client.onWriteFailed(throwable);
+        }
+    }
+
+    private static void handleFailure(Throwable throwable, Client client) {
+        // Канал закрыт, потому что подключение простаивало
+        if (throwable instanceof AsynchronousCloseException) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
         }
+        // Прочие ошибки не обрабатываем в рамках эксперимента
+        throw new RuntimeException(throwable);
     }
 }
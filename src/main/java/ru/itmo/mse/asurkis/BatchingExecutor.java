@@ -0,0 +1,143 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул worker'ов, который собирает задачи в пачки и выполняет каждую пачку одной задачей пула.
+ * Пачка отправляется, когда в ней набралось {@code --batch-size} задач
+ * или прошло {@code --batch-window-us} микросекунд с первой задачи пачки.
+ * <p>
+ * На маленьких массивах обработка запроса дешевле, чем передача задачи через общую очередь пула,
+ * поэтому обмен пачками уменьшает накладные расходы ценой задержки до окна.
+ */
+public class BatchingExecutor extends AbstractExecutorService {
+    static final int MAX_BATCH_SIZE = Options.getInt("batch-size", 1);
+    private static final long WINDOW_NS = TimeUnit.MICROSECONDS.toNanos(Options.getLong("batch-window-us", 50));
+
+    private final ExecutorService delegate;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Меняются под блокировкой this
+    private List<Runnable> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean shutdown = false;
+
+    private final LongAdder nBatches = new LongAdder();
+    private final LongAdder nTasks = new LongAdder();
+    /**
+     * Задачи, которые выполнились в пачке не одни
+     */
+    private final LongAdder nBatchedTasks = new LongAdder();
+
+    public BatchingExecutor(ExecutorService delegate) {
+        this.delegate = delegate;
+    }
+
+    ExecutorService delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        List<Runnable> batch = null;
+        synchronized (this) {
+            if (shutdown) throw new RejectedExecutionException("Batching executor is shut down");
+            pending.add(task);
+            if (pending.size() >= MAX_BATCH_SIZE) {
+                batch = takePending();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(this::flush, WINDOW_NS, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (batch != null) submitBatch(batch);
+    }
+
+    private void flush() {
+        List<Runnable> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            batch = takePending();
+        }
+        if (!batch.isEmpty()) submitBatch(batch);
+    }
+
+    private List<Runnable> takePending() {
+        List<Runnable> batch = pending;
+        pending = new ArrayList<>(MAX_BATCH_SIZE);
+        return batch;
+    }
+
+    private void submitBatch(List<Runnable> batch) {
+        nBatches.increment();
+        nTasks.add(batch.size());
+        if (batch.size() > 1) nBatchedTasks.add(batch.size());
+
+        // Перегруженный или уже закрытый пул отклоняет пачку целиком
+        ServerUtil.execute(delegate, new WorkerTask(() -> runBatch(batch), () -> batch.forEach(WorkerTask::reject),
+                WorkerTask.sourceOf(batch)));
+    }
+
+    private static void runBatch(List<Runnable> batch) {
+        for (Runnable task : batch) {
+            // Ошибка одной задачи не должна терять остальные, а её клиент вместо ответа получит кадр ошибки
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage());
+                if (task instanceof WorkerTask workerTask) workerTask.reject();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // Сервер может завершать пул и после последнего клиента, и по сигналу
+        synchronized (this) {
+            if (shutdown) return;
+            shutdown = true;
+        }
+        flush();
+        timer.shutdown();
+        delegate.shutdown();
+        System.err.println(this);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        timer.shutdownNow();
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        long batches = nBatches.sum();
+        long tasks = nTasks.sum();
+        return String.format("batching: batches=%d, tasks=%d, avg batch=%.2f, hit rate=%.3f",
+                batches, tasks,
+                batches == 0 ? 0.0 : (double) tasks / batches,
+                tasks == 0 ? 0.0 : (double) nBatchedTasks.sum() / tasks);
+    }
+}
@@ -0,0 +1,292 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Перебор параметров экспериментов вместо ноутбуков: для каждого сочетания параметров и каждой архитектуры
+ * запускает на loopback процесс сервера и процесс генератора нагрузки ({@code load}), сначала
+ * {@code warmup_trials} прогревочных повторов без учёта, затем {@code trials} учитываемых.
+ * Каждый повтор — новые процессы, поэтому повторы независимы и по ним можно считать доверительный интервал.
+ * <p>
+ * Перебор задаётся файлом свойств, у параметров эксперимента может быть несколько значений через запятую,
+ * перебираются все сочетания:
+ * <pre>
+ * servers=blocking,nonblocking,async
+ * request_size=16,256,4096
+ * n_clients=20
+ * request_delay_ms=50
+ * n_requests_per_client=20
+ * trials=5
+ * warmup_trials=1
+ * server_options=--warmup-requests=100
+ * client_options=
+ * server_cpus=0-3
+ * client_cpus=4-7
+ * </pre>
+ * {@code server_cpus} и {@code client_cpus} закрепляют процессы за ядрами через {@code taskset}.
+ * Параметры JVM процессов — {@code java_options}, по умолчанию те же, что у запустившего перебор.
+ * <p>
+ * Результат — один CSV: на каждое сочетание и метрику сводки сервера и генератора нагрузки
+ * среднее по повторам, стандартное отклонение и 95% доверительный интервал среднего (по распределению Стьюдента).
+ */
+public class Bench {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        args = Options.parse(args);
+        Properties sweep = new Properties();
+        try (Reader reader = Files.newBufferedReader(Path.of(args[0]), StandardCharsets.UTF_8)) {
+            sweep.load(reader);
+        }
+        new Bench(sweep).run(Path.of(args[1]));
+    }
+
+    static final String RESULTS_HEADER =
+            "server,request_size,n_clients,request_delay_ms,n_requests_per_client,metric,trials,mean,stddev,ci95_low,ci95_high";
+
+    /**
+     * Квантили 0.975 распределения Стьюдента для 1..30 степеней свободы, дальше — нормального
+     */
+    private static final double[] T_975 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+    private static final double Z_975 = 1.960;
+
+    private record Point(String server, int requestSize, int nClients, long requestDelayMs, int nRequestsPerClient) {
+        @Override
+        public String toString() {
+            return server + ",size=" + requestSize + ",clients=" + nClients
+                    + ",delay=" + requestDelayMs + ",requests=" + nRequestsPerClient;
+        }
+    }
+
+    private final List<String> servers;
+    private final List<Integer> requestSizes;
+    private final List<Integer> nClientsList;
+    private final List<Long> requestDelays;
+    private final List<Integer> nRequestsList;
+    private final int trials;
+    private final int warmupTrials;
+    private final List<String> serverOptions;
+    private final List<String> clientOptions;
+    private final List<String> javaCommand = new ArrayList<>();
+    private final String serverCpus;
+    private final String clientCpus;
+    private final long startTimeoutMs;
+    private final long trialTimeoutMs;
+
+    public Bench(Properties sweep) {
+        servers = splitList(sweep.getProperty("servers", "blocking,nonblocking,async"));
+        requestSizes = splitList(required(sweep, "request_size")).stream().map(Integer::parseInt).toList();
+        nClientsList = splitList(required(sweep, "n_clients")).stream().map(Integer::parseInt).toList();
+        requestDelays = splitList(sweep.getProperty("request_delay_ms", "0")).stream().map(Long::parseLong).toList();
+        nRequestsList = splitList(required(sweep, "n_requests_per_client")).stream().map(Integer::parseInt).toList();
+        trials = Integer.parseInt(sweep.getProperty("trials", "5"));
+        warmupTrials = Integer.parseInt(sweep.getProperty("warmup_trials", "1"));
+        if (trials < 1) throw new IllegalArgumentException("Sweep needs at least one trial");
+        serverOptions = splitWords(sweep.getProperty("server_options", ""));
+        clientOptions = splitWords(sweep.getProperty("client_options", ""));
+        serverCpus = sweep.getProperty("server_cpus", "");
+        clientCpus = sweep.getProperty("client_cpus", "");
+        startTimeoutMs = Long.parseLong(sweep.getProperty("start_timeout_ms", "30000"));
+        trialTimeoutMs = Long.parseLong(sweep.getProperty("trial_timeout_ms", "600000"));
+
+        javaCommand.add(ProcessHandle.current().info().command().orElse("java"));
+        String javaOptions = sweep.getProperty("java_options");
+        javaCommand.addAll(javaOptions == null
+                ? ManagementFactory.getRuntimeMXBean().getInputArguments()
+                : splitWords(javaOptions));
+        javaCommand.add("-cp");
+        javaCommand.add(System.getProperty("java.class.path"));
+        javaCommand.add(CommonMain.class.getName());
+    }
+
+    public void run(Path resultsPath) throws IOException, InterruptedException {
+        List<Point> points = new ArrayList<>();
+        for (int requestSize : requestSizes)
+            for (int nClients : nClientsList)
+                for (long requestDelayMs : requestDelays)
+                    for (int nRequests : nRequestsList)
+                        for (String server : servers)
+                            points.add(new Point(server, requestSize, nClients, requestDelayMs, nRequests));
+
+        try (PrintStream out = new PrintStream(Files.newOutputStream(resultsPath), false, StandardCharsets.UTF_8)) {
+            out.println(RESULTS_HEADER);
+            for (int i = 0; i < points.size(); i++) {
+                Point point = points.get(i);
+                for (int trial = 0; trial < warmupTrials; trial++) {
+                    System.err.printf("[%d/%d] %s warm-up %d/%d%n", i + 1, points.size(), point, trial + 1, warmupTrials);
+                    runTrial(point);
+                }
+                // Метрика -> значения по повторам, в порядке первого появления
+                Map<String, List<Double>> samples = new LinkedHashMap<>();
+                for (int trial = 0; trial < trials; trial++) {
+                    System.err.printf("[%d/%d] %s trial %d/%d%n", i + 1, points.size(), point, trial + 1, trials);
+                    for (Map.Entry<String, Double> entry : runTrial(point).entrySet())
+                        samples.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry.getValue());
+                }
+                for (Map.Entry<String, List<Double>> entry : samples.entrySet())
+                    printStatistics(out, point, entry.getKey(), entry.getValue());
+                // Частичные результаты не должны пропасть, если перебор оборвётся
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Один повтор: сервер на свободном порту и генератор нагрузки на {@code nClients} подключений
+     *
+     * @return итоговые метрики сервера ({@code server_*}) и генератора нагрузки ({@code client_*})
+     */
+    private Map<String, Double> runTrial(Point point) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> serverArgs = new ArrayList<>(List.of(point.server, String.valueOf(port), String.valueOf(point.nClients)));
+        serverArgs.addAll(serverOptions);
+        Process server = start(serverCpus, serverArgs);
+        try {
+            OutputCollector serverOut = new OutputCollector(server.getInputStream());
+            // Первая строка stdout (заголовок сводки) печатается, когда сервер уже слушает порт
+            if (!serverOut.firstLine.await(startTimeoutMs, TimeUnit.MILLISECONDS))
+                throw new IOException("Server " + point + " did not start in " + startTimeoutMs + " ms");
+            if (!server.isAlive())
+                throw new IOException("Server " + point + " exited with code " + server.exitValue());
+
+            List<String> loadArgs = new ArrayList<>(List.of("load", "127.0.0.1", String.valueOf(port),
+                    String.valueOf(point.requestSize), String.valueOf(point.nClients),
+                    String.valueOf(point.nRequestsPerClient), "--delay-ms=" + point.requestDelayMs));
+            loadArgs.addAll(clientOptions);
+            Process load = start(clientCpus, loadArgs);
+            OutputCollector loadOut;
+            try {
+                loadOut = new OutputCollector(load.getInputStream());
+                awaitExit(load, "Load generator", point);
+            } finally {
+                load.destroyForcibly();
+            }
+            awaitExit(server, "Server", point);
+
+            Map<String, Double> values = new LinkedHashMap<>();
+            parseSummary(serverOut.lines(), "server_", values);
+            parseSummary(loadOut.lines(), "client_", values);
+            return values;
+        } finally {
+            server.destroyForcibly();
+        }
+    }
+
+    private Process start(String cpus, List<String> args) throws IOException {
+        List<String> command = new ArrayList<>();
+        if (!cpus.isEmpty()) {
+            command.add("taskset");
+            command.add("-c");
+            command.add(cpus);
+        }
+        command.addAll(javaCommand);
+        command.addAll(args);
+        return new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private void awaitExit(Process process, String what, Point point) throws IOException, InterruptedException {
+        if (!process.waitFor(trialTimeoutMs, TimeUnit.MILLISECONDS))
+            throw new IOException(what + " " + point + " did not finish in " + trialTimeoutMs + " ms");
+        if (process.exitValue() != 0)
+            throw new IOException(what + " " + point + " exited with code " + process.exitValue());
+    }
+
+    /**
+     * Разобрать строки {@code total} сводки в формате {@link MetricsRecorder#SUMMARY_HEADER}
+     */
+    private static void parseSummary(List<String> lines, String prefix, Map<String, Double> values) {
+        String[] columns = MetricsRecorder.SUMMARY_HEADER.split(",");
+        for (String line : lines) {
+            String[] fields = line.split(",");
+            if (fields.length != columns.length || !fields[0].equals("total")) continue;
+            // Начиная с count: числа
+            for (int i = 2; i < columns.length; i++)
+                values.put(prefix + fields[1] + "_" + columns[i], Double.parseDouble(fields[i]));
+        }
+    }
+
+    private static void printStatistics(PrintStream out, Point point, String metric, List<Double> samples) {
+        int n = samples.size();
+        double mean = samples.stream().mapToDouble(Double::doubleValue).average().orElse(Double.NaN);
+        double stddev = Double.NaN;
+        double halfWidth = Double.NaN;
+        if (n > 1) {
+            double squares = 0;
+            for (double x : samples) squares += (x - mean) * (x - mean);
+            stddev = Math.sqrt(squares / (n - 1));
+            double t = n - 1 <= T_975.length ? T_975[n - 2] : Z_975;
+            halfWidth = t * stddev / Math.sqrt(n);
+        }
+        out.printf(Locale.ROOT, "%s,%d,%d,%d,%d,%s,%d,%.3f,%.3f,%.3f,%.3f%n",
+                point.server, point.requestSize, point.nClients, point.requestDelayMs, point.nRequestsPerClient,
+                metric, n, mean, stddev, mean - halfWidth, mean + halfWidth);
+    }
+
+    /**
+     * Читает stdout процесса в фоне, чтобы процесс не встал на заполненном канале
+     */
+    private static class OutputCollector {
+        final CountDownLatch firstLine = new CountDownLatch(1);
+        private final List<String> lines = new ArrayList<>();
+        private final Thread thread;
+
+        OutputCollector(InputStream in) {
+            thread = Thread.ofVirtual().start(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                    for (String line; (line = reader.readLine()) != null; ) {
+                        synchronized (lines) {
+                            lines.add(line);
+                        }
+                        firstLine.countDown();
+                    }
+                } catch (IOException e) {
+                    // Процесс убит, вывод обрывается
+                } finally {
+                    firstLine.countDown();
+                }
+            });
+        }
+
+        /**
+         * Весь вывод, вызывается после завершения процесса
+         */
+        List<String> lines() throws InterruptedException {
+            thread.join();
+            synchronized (lines) {
+                return new ArrayList<>(lines);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String required(Properties sweep, String name) {
+        String value = sweep.getProperty(name);
+        if (value == null) throw new IllegalArgumentException("Sweep definition needs " + name);
+        return value;
+    }
+
+    private static List<String> splitList(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+    }
+
+    private static List<String> splitWords(String value) {
+        return Arrays.stream(value.trim().split("\\s+")).filter(s -> !s.isEmpty()).toList();
+    }
+}
@@ -1,17 +1,23 @@
 package ru.itmo.mse.asurkis;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-import ru.itmo.mse.asurkis.Messages.ArrayMessage;
-
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class BlockingServer {
     public static void main(String[] args) throws IOException {
+        args = Options.parse(args);
         int port = Integer.parseInt(args[0]);
         int nClients = Integer.parseInt(args[1]);
         new BlockingServer(port).start(nClients);
@@ -24,24 +30,40 @@ public class BlockingServer {
         this.port = port;
         Runtime runtime = Runtime.getRuntime();
         int nProcessors = runtime.availableProcessors();
-        workerPool = Executors.newFixedThreadPool(nProcessors);
+        workerPool = ServerUtil.newWorkerPool(nProcessors);
     }
 
-    private final AtomicInteger remainingClients = new AtomicInteger();
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
 
     public void start(int nClients) throws IOException {
-        System.out.println("processing_ns,response_ns");
-        remainingClients.set(nClients);
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            for (int i = 0; i < nClients; i++) {
-                Socket socket = serverSocket.accept();
-                Thread thread = new Thread(() -> serveClientWrap(socket));
-                thread.start();
+        List<ServerSocket> listeners = new ArrayList<>();
+        try {
+            for (int i = 0; i < ServerUtil.ACCEPTORS; i++)
+                listeners.add(ServerUtil.bindListener(new ServerSocket(), port));
+            lifecycle.start(nClients, ServerUtil.closeAll(listeners), workerPool);
+            ServerUtil.runAcceptors(listeners, this::acceptClients);
+        } finally {
+            ServerUtil.closeAll(listeners).close();
+        }
+    }
+
+    private void acceptClients(ServerSocket serverSocket, int shard) throws IOException {
+        while (lifecycle.shouldAccept()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Сокет закрыт по сигналу завершения или после приёма последнего клиента другим потоком
+                if (!lifecycle.shouldAccept()) break;
+                throw e;
             }
+            long connectionId = lifecycle.clientAccepted();
+            Thread thread = new Thread(() -> serveClientWrap(socket, connectionId));
+            thread.start();
         }
     }
 
-    private void serveClientWrap(Socket socket) {
+    private void serveClientWrap(Socket socket, long connectionId) {
         ExecutorService responder = Executors.newSingleThreadExecutor();
         try (
                 InputStream inputStream = socket.getInputStream();
@@ -51,56 +73,138 @@ public class BlockingServer {
                 DataInputStream dis = new DataInputStream(bufferedInputStream);
                 DataOutputStream dos = new DataOutputStream(bufferedOutputStream)
         ) {
-            while (true) {
+            if (ServerLifecycle.IDLE_TIMEOUT_MS > 0)
+                socket.setSoTimeout((int) ServerLifecycle.IDLE_TIMEOUT_MS);
+            WireFormat format = WireFormat.acceptHandshake(bufferedInputStream, dos);
+
+            // После сигнала завершения новые запросы не читаем: ответы на прочитанные отправятся, и подключение закроется
+            while (!lifecycle.isStopping()) {
                 Metrics metrics = new Metrics();
+                metrics.connectionId = connectionId;
 
                 int size;
                 try {
                     size = dis.readInt();
-                } catch (EOFException e) {
+                    metrics.headerRead = StageTracer.now();
+                } catch (EOFException | SocketTimeoutException e) {
+                    // Клиент отключился или простаивает слишком долго
                     break;
                 }
 
+                // Потоковая сортировка разбирает только protobuf
+                if (format == WireFormat.PROTOBUF && StreamingSort.isEnabledFor(size)) {
+                    StreamingSort sort = readStreaming(dis, size, metrics);
+                    responder.submit(() -> respondStreaming(sort, metrics, dos));
+                    continue;
+                }
+
                 byte[] requestBuf = new byte[size];
                 for (int pos = 0; pos < size; )
                     pos += dis.read(requestBuf, pos, size - pos);
 
                 metrics.requestReceived = System.nanoTime();
-
-                workerPool.submit(() -> processAndScheduleResponse(requestBuf, metrics, dos, responder));
+                metrics.payloadBytes = size;
+                lifecycle.requestReceived();
+
+                // Ответы отправляются в порядке запросов, даже если следующий запрос обработан раньше
+                CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+                metrics.enqueued = StageTracer.now();
+                ServerUtil.execute(workerPool, new WorkerTask(
+                        () -> process(requestBuf, format, metrics, response),
+                        () -> reject(metrics, response)));
+                responder.submit(() -> respond(response, metrics, dos));
             }
+
+            // Отправляем оставшиеся ответы до закрытия потоков
+            responder.shutdown();
+            awaitQuietly(responder);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             responder.shutdown();
 
-            if (remainingClients.decrementAndGet() == 0)
+            if (lifecycle.clientClosed()) {
                 workerPool.shutdown();
+                MetricsRecorder.finish();
+            }
+        }
+    }
+
+    /**
+     * Дождаться отправки всех ответов подключения, чтобы они попали в итоговые метрики
+     */
+    private static void awaitQuietly(ExecutorService responder) {
+        try {
+            responder.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void processAndScheduleResponse(byte[] requestBuf, Metrics metrics, DataOutputStream dos, ExecutorService responder) {
+    private void process(byte[] requestBuf, WireFormat format, Metrics metrics,
+                         CompletableFuture<ByteBuffer> response) {
         try {
             metrics.processingStart = System.nanoTime();
-            ArrayMessage payload = ArrayMessage.parseFrom(requestBuf);
-            payload = ServerUtil.processPayload(payload);
-            byte[] responseBuf = payload.toByteArray();
+            // Ответ вместе с размером, его можно отправить одним write
+            ByteBuffer responseBuf = ServerUtil.processPayload(
+                    ByteBuffer.wrap(requestBuf).position(requestBuf.length), format, metrics);
             metrics.processingFinish = System.nanoTime();
-            responder.submit(() -> respond(responseBuf, metrics, dos));
-        } catch (InvalidProtocolBufferException e) {
+            response.complete(responseBuf);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Пул перегружен: вместо ответа отправляем кадр ошибки
+     */
+    private static void reject(Metrics metrics, CompletableFuture<ByteBuffer> response) {
+        metrics.rejected = true;
+        response.complete(ServerUtil.overloadedResponse(ByteBuffer.allocate(4)));
+    }
+
+    /**
+     * Большой запрос сортируется сериями по мере чтения, в обход пула worker'ов.
+     * Тело читается вместе с обработкой, поэтому обработка начинается сразу после заголовка
+     */
+    private StreamingSort readStreaming(DataInputStream dis, int size, Metrics metrics) throws IOException {
+        metrics.requestReceived = metrics.processingStart = System.nanoTime();
+        metrics.payloadBytes = size;
+        lifecycle.requestReceived();
+        StreamingSort sort = new StreamingSort();
+        try {
+            sort.read(dis, size);
+        } catch (IOException e) {
+            sort.close();
+            throw e;
+        }
+        return sort;
+    }
+
+    private void respondStreaming(StreamingSort sort, Metrics metrics, DataOutputStream dos) {
+        try (sort) {
+            dos.writeInt(sort.encodedSize());
+            metrics.responseBytes = 4L + sort.encodedSize();
+            sort.writeTo(dos);
+            dos.flush();
+
+            metrics.processingFinish = metrics.responseSent = System.nanoTime();
+            lifecycle.responseSent(metrics);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void respond(byte[] buf, Metrics metrics, DataOutputStream dos) {
+    private void respond(Future<ByteBuffer> response, Metrics metrics, DataOutputStream dos) {
         try {
-            dos.writeInt(buf.length);
-            dos.write(buf);
+            ByteBuffer buf = response.get();
+            metrics.writeReady = StageTracer.now();
+            dos.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
             dos.flush();
 
             metrics.responseSent = System.nanoTime();
-            ServerUtil.printMetrics(metrics);
-        } catch (IOException e) {
+            lifecycle.responseSent(metrics);
+        } catch (IOException | InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,170 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул worker'ов с ограниченной очередью задач ({@code --queue-capacity}).
+ * Без ограничения при перегрузке очередь растёт вместе с памятью под тела запросов, а задержка — без предела.
+ * <p>
+ * Что делать, когда очередь заполнена, задаёт {@code --overload-policy}:
+ * <ul>
+ *     <li>{@code pause} — запрос откладывается, а его подключение не читает новые запросы, пока в очереди
+ *     не освободится место. Цикл событий и потоки группы каналов при этом обслуживают остальные подключения.
+ *     Задачи без {@link WorkerTask.Source} отложить нельзя, передающий их поток ждёт места в очереди.
+ *     Пачку {@link BatchingExecutor}, закрытую по окну, передаёт поток таймера, а не читающий, поэтому
+ *     её подключения останавливаются на один запрос позже (см. {@link RequestQueue#park()});</li>
+ *     <li>{@code reject} — новый запрос отклоняется, клиент получает кадр ошибки;</li>
+ *     <li>{@code drop-oldest} — отклоняется самый старый запрос из очереди, а новый встаёт в конец.</li>
+ * </ul>
+ * Отклоняются только {@link WorkerTask}, остальные задачи выполняются в вызывающем потоке.
+ */
+public class BoundedWorkerPool extends ThreadPoolExecutor {
+    /**
+     * 0 — очередь не ограничена
+     */
+    static final int CAPACITY = Options.getInt("queue-capacity", 0);
+
+    enum Policy {
+        PAUSE("pause"), REJECT("reject"), DROP_OLDEST("drop-oldest");
+
+        private final String name;
+
+        Policy(String name) {
+            this.name = name;
+        }
+
+        static Policy byName(String name) {
+            for (Policy policy : values()) {
+                if (policy.name.equals(name)) return policy;
+            }
+            throw new IllegalArgumentException("Unknown overload policy, expected pause, reject or drop-oldest");
+        }
+    }
+
+    private final Policy policy;
+    private final BlockingDeque<Runnable> queue;
+    // Отложенные политикой pause задачи в порядке поступления
+    private final ConcurrentLinkedDeque<WorkerTask> parked = new ConcurrentLinkedDeque<>();
+
+    private final LongAdder nSubmitted = new LongAdder();
+    private final LongAdder nPaused = new LongAdder();
+    private final LongAdder nRejected = new LongAdder();
+    private final LongAdder nDropped = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    private BoundedWorkerPool(int nThreads, BlockingDeque<Runnable> queue, Policy policy) {
+        super(nThreads, nThreads, 0, TimeUnit.MILLISECONDS, queue);
+        this.queue = queue;
+        this.policy = policy;
+    }
+
+    public static BoundedWorkerPool create(int nThreads, int capacity, Policy policy) {
+        BoundedWorkerPool pool = new BoundedWorkerPool(nThreads, new LinkedBlockingDeque<>(capacity), policy);
+        pool.setRejectedExecutionHandler((task, executor) -> pool.onOverload(task));
+        // Отложенные задачи кладутся прямо в очередь, разбирать её должны уже запущенные потоки
+        pool.prestartAllCoreThreads();
+        return pool;
+    }
+
+    static BoundedWorkerPool fromOptions(int nThreads) {
+        return create(nThreads, CAPACITY, Policy.byName(Options.getString("overload-policy", "pause")));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        super.execute(task);
+        nSubmitted.increment();
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    private void onOverload(Runnable task) {
+        if (isShutdown())
+            throw new RejectedExecutionException("Worker pool is shut down");
+
+        switch (policy) {
+            case PAUSE -> {
+                nPaused.increment();
+                if (task instanceof WorkerTask workerTask && workerTask.source() != null) {
+                    park(workerTask);
+                    return;
+                }
+                try {
+                    queue.put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+            case REJECT -> {
+                nRejected.increment();
+                WorkerTask.reject(task);
+            }
+            case DROP_OLDEST -> {
+                // Место в очереди может занять другой поток, поэтому освобождаем его, пока новая задача не встанет
+                while (!queue.offer(task)) {
+                    Runnable oldest = queue.pollFirst();
+                    if (oldest != null) {
+                        nDropped.increment();
+                        WorkerTask.reject(oldest);
+                    }
+                }
+            }
+        }
+    }
+
+    private void park(WorkerTask task) {
+        task.source().pauseReading();
+        parked.addLast(task);
+        // Место могло освободиться, пока задача откладывалась
+        resumeParked();
+        // После shutdown отложенные задачи в очередь уже не попадут
+        if (isShutdown()) rejectParked();
+    }
+
+    /**
+     * Место в очереди освободилось: worker взял задачу
+     */
+    @Override
+    protected void beforeExecute(Thread thread, Runnable task) {
+        if (!parked.isEmpty()) resumeParked();
+    }
+
+    private void resumeParked() {
+        WorkerTask task;
+        while ((task = parked.pollFirst()) != null) {
+            if (!queue.offer(task)) {
+                parked.addFirst(task);
+                // Если место освободилось, пока задача была вне списка, её больше некому вернуть в очередь
+                if (queue.remainingCapacity() == 0) return;
+                continue;
+            }
+            task.source().resumeReading();
+        }
+    }
+
+    private void rejectParked() {
+        WorkerTask task;
+        while ((task = parked.pollFirst()) != null) {
+            task.source().resumeReading();
+            task.reject();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // Сервер может завершать пул и после последнего клиента, и по сигналу
+        boolean first = !isShutdown();
+        super.shutdown();
+        rejectParked();
+        if (first) System.err.println(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("work queue: capacity=%d, policy=%s, submitted=%d, max depth=%d, paused=%d, rejected=%d, dropped=%d",
+                queue.remainingCapacity() + queue.size(), policy.name, nSubmitted.sum(), maxDepth.get(),
+                nPaused.sum(), nRejected.sum(), nDropped.sum());
+    }
+}
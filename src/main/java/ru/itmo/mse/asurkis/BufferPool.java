@@ -0,0 +1,141 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул direct-буферов, разбитых на классы размеров по степеням двойки.
+ * Direct-буферы не требуют лишнего копирования внутри JDK при чтении из канала и записи в канал,
+ * но дорого выделяются, поэтому после обработки подключения буферы возвращаются в пул.
+ */
+public class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(
+            ServerUtil.START_CAPACITY_BYTES,
+            Options.getInt("buffer-cap-bytes", 1 << 30),
+            Options.getLong("buffer-pool-retain-bytes", 256L << 20));
+
+    private final int minCapacity;
+    private final int maxCapacity;
+    private final long maxRetainedBytes;
+
+    /**
+     * {@code freeLists.get(i)} хранит свободные буферы ёмкостью {@code minCapacity << i}
+     */
+    private final List<Queue<ByteBuffer>> freeLists;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder leased = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+
+    /**
+     * @param minCapacity      ёмкость наименьшего класса, степень двойки
+     * @param maxCapacity      наибольший буфер, который может понадобиться одному подключению
+     * @param maxRetainedBytes сколько памяти пул может держать в свободных буферах, остальное отдаётся GC
+     */
+    public BufferPool(int minCapacity, int maxCapacity, long maxRetainedBytes) {
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+        this.maxRetainedBytes = maxRetainedBytes;
+        int nClasses = classIndex(ServerUtil.findCapacity(minCapacity, maxCapacity)) + 1;
+        freeLists = new ArrayList<>(nClasses);
+        for (int i = 0; i < nClasses; i++)
+            freeLists.add(new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Взять буфер ёмкостью не меньше {@code capacity}, подготовленный для записи до {@code capacity}
+     */
+    public ByteBuffer lease(int capacity) throws IOException {
+        checkSize(capacity);
+        if (capacity > maxCapacity)
+            throw new IOException("Buffer of " + capacity + " bytes exceeds per-connection cap of " + maxCapacity);
+        int index = classIndex(ServerUtil.findCapacity(minCapacity, capacity));
+        ByteBuffer buf = freeLists.get(index).poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(minCapacity << index);
+            allocated.increment();
+            allocatedBytes.add(buf.capacity());
+        } else {
+            retainedBytes.addAndGet(-buf.capacity());
+        }
+        leased.increment();
+        buf.clear();
+        buf.limit(capacity);
+        return buf;
+    }
+
+    /**
+     * Вернуть буфер в пул. Буферы, выделенные не пулом (например, на куче), игнорируются.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) return;
+        int capacity = buf.capacity();
+        if (Integer.bitCount(capacity) != 1 || capacity < minCapacity) return;
+        int index = classIndex(capacity);
+        if (index >= freeLists.size()) return;
+
+        returned.increment();
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        freeLists.get(index).offer(buf);
+    }
+
+    /**
+     * Аналог {@link ServerUtil#ensureLimit(ByteBuffer, int)}: если буфер мал, он возвращается в пул
+     * и заменяется буфером подходящего класса
+     */
+    public ByteBuffer ensureLimit(ByteBuffer buf, int limit) throws IOException {
+        checkSize(limit);
+        if (buf.capacity() >= limit) {
+            buf.clear();
+            buf.limit(limit);
+            return buf;
+        }
+        ByteBuffer newBuf = lease(limit);
+        release(buf);
+        return newBuf;
+    }
+
+    /**
+     * Размер приходит из заголовка кадра, и клиент может прислать отрицательный
+     */
+    private static void checkSize(int size) throws IOException {
+        if (size < 0)
+            throw new IOException("Negative buffer size " + size);
+    }
+
+    private int classIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(minCapacity);
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Сколько буферов сейчас выдано и не возвращено
+     */
+    long leasedBuffers() {
+        return leased.sum() - returned.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("buffer pool: allocated=%d (%d bytes), leased=%d, returned=%d, retained=%d bytes",
+                allocated.sum(), allocatedBytes.sum(), leased.sum(), returned.sum(), retainedBytes.get());
+    }
+}
@@ -1,12 +1,14 @@
 package ru.itmo.mse.asurkis;
 
-import ru.itmo.mse.asurkis.Messages.ArrayMessage;
-
-import java.io.*;
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 public class Client {
     public static void main(String[] args) throws InterruptedException, IOException {
+        args = Options.parse(args);
         String serverAddress = args[0];
         int serverPort = Integer.parseInt(args[1]);
         int payloadSize = Integer.parseInt(args[2]);
@@ -18,6 +20,12 @@ public class Client {
     private final String serverAddress;
     private final int serverPort;
 
+    /**
+     * Сколько запросов может одновременно ждать ответа, по умолчанию следующий запрос отправляется после ответа
+     */
+    private final int pipelineDepth = Options.getInt("pipeline", 1);
+    private final WireFormat wireFormat = WireFormat.byName(Options.getString("wire", "protobuf"));
+
     public Client(String serverAddress, int serverPort) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
@@ -26,46 +34,106 @@ public class Client {
     public void execute(int payloadSize, long delayMs, int nRequests) throws InterruptedException, IOException {
         long start, finish;
 
-        ArrayMessage.Builder requestBuilder = ArrayMessage.newBuilder();
-        for (int x = payloadSize; x > 0; x--)
-            requestBuilder.addX(x);
-        ArrayMessage requestMessage = requestBuilder.build();
-        byte[] requestBytes = requestMessage.toByteArray();
-
-        try (
-                Socket socket = new Socket(serverAddress, serverPort);
-                InputStream inputStream = socket.getInputStream();
-                OutputStream outputStream = socket.getOutputStream();
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-                BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
-                DataInputStream dis = new DataInputStream(bufferedInputStream);
-                DataOutputStream dos = new DataOutputStream(bufferedOutputStream)
-        ) {
-            start = System.nanoTime();
-            for (int i = 0; i < nRequests; i++) {
-                dos.writeInt(requestBytes.length);
-                dos.write(requestBytes);
-                dos.flush();
+        int[] values = new int[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            values[i] = payloadSize - i;
+        byte[] requestBytes = wireFormat.encodeRequest(values);
+
+        // Размер и тело запроса отправляются одной gathering-записью без склеивания в общий массив
+        ByteBuffer requestHeader = ByteBuffer.allocateDirect(4).putInt(0, requestBytes.length);
+        ByteBuffer requestBody = ByteBuffer.allocateDirect(requestBytes.length).put(0, requestBytes);
+        ByteBuffer[] request = {requestHeader, requestBody};
 
-                int responseSize = dis.readInt();
-                byte[] responseBytes = new byte[responseSize];
-                for (int pos = 0; pos < responseSize; )
-                    pos += dis.read(responseBytes, pos, responseSize - pos);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort))) {
+            handshake(channel);
+            // Все ответы читаются в один буфер, он растёт до самого большого ответа
+            ByteBuffer in = ByteBuffer.allocateDirect(4 + requestBytes.length);
 
-                ArrayMessage responseMessage = ArrayMessage.parseFrom(responseBytes);
-                assert responseMessage.getXCount() == payloadSize;
-                for (int j = 0; j < payloadSize; j++)
-                    assert responseMessage.getX(j) == j + 1;
+            start = System.nanoTime();
+            int nRejected = 0;
+            // Сразу отправляем до pipelineDepth запросов, следующий — после каждого ответа
+            int nSent = 0;
+            for (; nSent < Math.min(pipelineDepth, nRequests); nSent++)
+                sendRequest(channel, request);
+
+            for (int i = 0; i < nRequests; i++) {
+                in = readFrame(channel, in);
+                int responseSize = in.getInt();
+                if (responseSize == ServerUtil.OVERLOADED_FRAME_SIZE) {
+                    // Сервер перегружен и отклонил запрос, тела у ответа нет
+                    nRejected++;
+                } else {
+                    ByteBuffer responseBody = in.slice(in.position(), responseSize);
+                    in.position(in.position() + responseSize);
+                    assert checkResponse(responseBody, payloadSize);
+                }
+                // Начало следующих ответов остаётся в буфере
+                in.compact();
 
                 // Более точного метода обеспечить ожидание всё равно нет,
                 // ScheduledExecutorService даёт точно такие же гарантии
                 Thread.sleep(delayMs);
+
+                if (nSent < nRequests) {
+                    sendRequest(channel, request);
+                    nSent++;
+                }
             }
             finish = System.nanoTime();
+            if (nRejected > 0)
+                System.err.println("rejected requests: " + nRejected);
         }
 
         System.out.println(finish - start);
         // System.out.println((double) (finish - start) / nRequests);
         // System.out.println((double) (finish - start) / nRequests - delayMs);
     }
+
+    /**
+     * Предложить серверу формат {@link WireFormat}, отличный от protobuf, и дождаться подтверждения
+     */
+    private void handshake(SocketChannel channel) throws IOException {
+        if (wireFormat == WireFormat.PROTOBUF) return;
+        ByteBuffer buf = ByteBuffer.allocate(1).put(0, (byte) wireFormat.handshake);
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) throw new EOFException("Server closed the connection");
+        }
+        if ((buf.get(0) & 0xFF) != wireFormat.handshake)
+            throw new IOException("Server does not support wire format " + wireFormat);
+    }
+
+    private static void sendRequest(SocketChannel channel, ByteBuffer[] request) throws IOException {
+        for (ByteBuffer buffer : request) buffer.rewind();
+        while (request[1].hasRemaining()) channel.write(request);
+    }
+
+    /**
+     * Дочитать в буфер (в режиме записи) хотя бы один кадр целиком
+     *
+     * @return буфер в режиме чтения с кадром в начале; если кадр не помещался, буфер заменён большим
+     */
+    private static ByteBuffer readFrame(SocketChannel channel, ByteBuffer in) throws IOException {
+        while (true) {
+            if (in.position() >= 4) {
+                int size = Math.max(0, in.getInt(0));
+                if (in.position() >= 4 + size) break;
+                if (in.capacity() < 4 + size) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(ServerUtil.findCapacity(in.capacity(), 4 + size));
+                    in = larger.put(in.flip());
+                }
+            }
+            if (channel.read(in) == -1) throw new EOFException("Server closed the connection");
+        }
+        return in.flip();
+    }
+
+    private boolean checkResponse(ByteBuffer body, int payloadSize) throws IOException {
+        ArrayCodec codec = ArrayCodec.get();
+        assert wireFormat.decodeResponse(codec, body) == payloadSize;
+        for (int j = 0; j < payloadSize; j++)
+            assert codec.values()[j] == j + 1;
+        return true;
+    }
 }
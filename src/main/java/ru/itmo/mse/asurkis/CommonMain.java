@@ -1,10 +1,11 @@
 package ru.itmo.mse.asurkis;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.Arrays;
 
 public class CommonMain {
-    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        args = Options.parse(args);
         switch (args[0]) {
             case "client" -> {
                 String serverAddress = args[1];
@@ -15,6 +16,17 @@ public class CommonMain {
                 Client client = new Client(serverAddress, serverPort);
                 client.execute(payloadSize, delayMs, nRequests);
             }
+            case "load" -> {
+                String serverAddress = args[1];
+                int serverPort = Integer.parseInt(args[2]);
+                int payloadSize = Integer.parseInt(args[3]);
+                int nConnections = Integer.parseInt(args[4]);
+                int nRequests = Integer.parseInt(args[5]);
+                LoadGenerator generator = new LoadGenerator(serverAddress, serverPort);
+                generator.execute(payloadSize, nConnections, nRequests);
+            }
+            case "bench" -> Bench.main(Arrays.copyOfRange(args, 1, args.length));
+            case "metrics-log" -> MetricsLogReader.main(Arrays.copyOfRange(args, 1, args.length));
             case "blocking" -> {
                 int port = Integer.parseInt(args[1]);
                 int nClients = Integer.parseInt(args[2]);
@@ -27,6 +39,18 @@ public class CommonMain {
                 NonBlockingServer server = new NonBlockingServer(port);
                 server.start(nClients);
             }
+            case "virtual" -> {
+                int port = Integer.parseInt(args[1]);
+                int nClients = Integer.parseInt(args[2]);
+                VirtualThreadServer server = new VirtualThreadServer(port);
+                server.start(nClients);
+            }
+            case "coordinator" -> {
+                int port = Integer.parseInt(args[1]);
+                int nClients = Integer.parseInt(args[2]);
+                Coordinator coordinator = new Coordinator(port);
+                coordinator.start(nClients);
+            }
             case "async" -> {
                 int port = Integer.parseInt(args[1]);
                 int nClients = Integer.parseInt(args[2]);
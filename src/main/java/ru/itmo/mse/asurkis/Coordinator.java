@@ -0,0 +1,347 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Координатор для очень больших массивов: делит запрос на части по диапазонам значений и сортирует части
+ * на нескольких серверах ({@code --backends=host:port,...}), например {@code nonblocking} в других процессах.
+ * <p>
+ * Границы частей выбираются по случайной выборке чисел запроса, поэтому части примерно равны и упорядочены:
+ * все числа части не больше чисел следующей. Повторяющееся поле protobuf при склейке сообщений складывается
+ * в одно, так что ответ — тела ответов серверов подряд, без слияния и разбора. Размер ответа известен заранее,
+ * поэтому заголовок уходит сразу, а части — по порядку, как только готова очередная.
+ * <p>
+ * Если сервер не ответил за {@code --backend-timeout-ms}, оборвал подключение или отклонил часть из-за перегрузки,
+ * часть отправляется следующему серверу, всего не больше {@code --backend-attempts} попыток.
+ */
+public class Coordinator {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        args = Options.parse(args);
+        int port = Integer.parseInt(args[0]);
+        int nClients = Integer.parseInt(args[1]);
+        new Coordinator(port).start(nClients);
+    }
+
+    private static final long BACKEND_TIMEOUT_MS = Options.getLong("backend-timeout-ms", 30_000);
+    /**
+     * Массивы меньше двух таких частей не делятся: пересылка дороже выигрыша
+     */
+    private static final int MIN_PARTITION_SIZE = Options.getInt("min-partition-size", 1 << 16);
+    private static final int SAMPLES_PER_PARTITION = 64;
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final int nPartitions;
+    private final int maxAttempts;
+    private final int port;
+
+    // Подключения клиентов и обмены с серверами — на виртуальных потоках, вычислений здесь почти нет
+    private final ExecutorService connectionPool = Executors.newVirtualThreadPerTaskExecutor();
+    private final ExecutorService dispatchPool = Executors.newVirtualThreadPerTaskExecutor();
+
+    public Coordinator(int port) {
+        this.port = port;
+        String addresses = Options.getString("backends", "");
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("Coordinator needs --backends=host:port,...");
+        for (String address : addresses.split(","))
+            backends.add(Backend.parse(address.trim()));
+        nPartitions = Options.getInt("partitions", backends.size());
+        maxAttempts = Options.getInt("backend-attempts", backends.size() + 1);
+    }
+
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+
+    public void start(int nClients) throws IOException, InterruptedException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            lifecycle.start(nClients, serverSocket, dispatchPool);
+            while (lifecycle.shouldAccept()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // Сокет закрыт по сигналу завершения
+                    if (!lifecycle.shouldAccept()) break;
+                    throw e;
+                }
+                long connectionId = lifecycle.clientAccepted();
+                connectionPool.submit(() -> serveClientWrap(socket, connectionId));
+            }
+        }
+
+        // Виртуальные потоки — демоны, поэтому дожидаемся их явно
+        dispatchPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        connectionPool.close();
+        for (Backend backend : backends)
+            backend.closeIdle();
+        MetricsRecorder.finish();
+    }
+
+    private void serveClientWrap(Socket socket, long connectionId) {
+        try (
+                socket;
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(socket.getInputStream());
+                DataInputStream dis = new DataInputStream(bufferedInputStream);
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream())
+        ) {
+            if (ServerLifecycle.IDLE_TIMEOUT_MS > 0)
+                socket.setSoTimeout((int) ServerLifecycle.IDLE_TIMEOUT_MS);
+            WireFormat format = WireFormat.acceptHandshake(bufferedInputStream, dos);
+
+            // После сигнала завершения новые запросы не читаем: ответы на прочитанные отправятся, и подключение закроется
+            while (!lifecycle.isStopping()) {
+                Metrics metrics = new Metrics();
+                metrics.connectionId = connectionId;
+
+                int size;
+                try {
+                    size = dis.readInt();
+                    metrics.headerRead = StageTracer.now();
+                } catch (EOFException | SocketTimeoutException e) {
+                    // Клиент отключился или простаивает слишком долго
+                    break;
+                }
+                if (size < 0) {
+                    System.err.println("Connection " + connectionId + ": negative request size " + size);
+                    break;
+                }
+                byte[] requestBuf = new byte[size];
+                dis.readFully(requestBuf);
+
+                metrics.requestReceived = System.nanoTime();
+                metrics.payloadBytes = size;
+                lifecycle.requestReceived();
+                try {
+                    process(requestBuf, format, metrics, dos);
+                } catch (CompletionException e) {
+                    // Заголовок ответа уже мог уйти, сообщить об ошибке можно только закрытием подключения
+                    System.err.println(e.getCause().getMessage());
+                    break;
+                }
+                metrics.responseSent = System.nanoTime();
+                lifecycle.responseSent(metrics);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (lifecycle.clientClosed())
+                dispatchPool.shutdown();
+        }
+    }
+
+    /**
+     * Части всегда отправляются серверам в protobuf, ответ в другом формате перекодируется целиком
+     */
+    private void process(byte[] requestBuf, WireFormat format, Metrics metrics, DataOutputStream dos)
+            throws IOException {
+        metrics.processingStart = System.nanoTime();
+        ArrayCodec codec = ArrayCodec.get();
+        int count = format.decodeRequest(codec, ByteBuffer.wrap(requestBuf));
+        int[] values = codec.values();
+        metrics.decoded = StageTracer.now();
+
+        int[] splitters = chooseSplitters(values, count);
+        int nParts = splitters.length + 1;
+
+        // Размеры частей в байтах: ответ на часть — те же числа в том же кодировании, того же размера
+        int[] partBytes = new int[nParts];
+        for (int i = 0; i < count; i++)
+            partBytes[partition(splitters, values[i])] += 1 + ArrayCodec.varintSize(values[i]);
+        ByteBuffer[] frames = new ByteBuffer[nParts];
+        for (int p = 0; p < nParts; p++)
+            frames[p] = ByteBuffer.allocate(4 + partBytes[p]).putInt(partBytes[p]);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = frames[partition(splitters, values[i])];
+            frame.put((byte) ArrayCodec.TAG_X);
+            ArrayCodec.writeVarint(frame, values[i]);
+        }
+
+        List<CompletableFuture<byte[]>> parts = new ArrayList<>(nParts);
+        try {
+            for (int p = 0; p < nParts; p++) {
+                int index = p;
+                byte[] frame = frames[p].array();
+                parts.add(partBytes[p] == 0
+                        ? CompletableFuture.completedFuture(new byte[0])
+                        : CompletableFuture.supplyAsync(() -> sortPartition(index, frame), dispatchPool));
+            }
+        } catch (RejectedExecutionException e) {
+            // Пул закрыт по сигналу завершения, а подключение ещё читает: запрос отклоняется, как при перегрузке
+            metrics.rejected = true;
+            metrics.responseBytes = 4;
+            dos.writeInt(ServerUtil.OVERLOADED_FRAME_SIZE);
+            metrics.processingFinish = System.nanoTime();
+            dos.flush();
+            return;
+        }
+
+        int responseSize = Arrays.stream(partBytes).sum();
+        if (format != WireFormat.PROTOBUF) {
+            respondReencoded(parts, responseSize, format, metrics, dos);
+            return;
+        }
+        metrics.responseBytes = 4L + responseSize;
+        dos.writeInt(responseSize);
+        for (CompletableFuture<byte[]> part : parts)
+            dos.write(part.join());
+        metrics.processingFinish = System.nanoTime();
+        dos.flush();
+    }
+
+    /**
+     * Ответы на части — protobuf, и их склейка — тоже сообщение protobuf со всеми числами по порядку
+     */
+    private static void respondReencoded(List<CompletableFuture<byte[]>> parts, int protobufSize, WireFormat format,
+                                         Metrics metrics, DataOutputStream dos) throws IOException {
+        ByteBuffer sorted = ByteBuffer.allocate(protobufSize);
+        for (CompletableFuture<byte[]> part : parts)
+            sorted.put(part.join());
+        ArrayCodec codec = ArrayCodec.get();
+        int count = codec.decode(sorted.flip());
+        ByteBuffer response = ByteBuffer.allocate(4 + format.responseSize(codec, count));
+        response.putInt(response.capacity() - 4);
+        format.encodeResponse(codec, response, count);
+        metrics.responseBytes = response.capacity();
+        dos.write(response.array());
+        metrics.processingFinish = System.nanoTime();
+        dos.flush();
+    }
+
+    /**
+     * Границы частей по случайной выборке: число {@code x} попадает в часть, равную количеству границ {@code <= x}
+     */
+    private int[] chooseSplitters(int[] values, int count) {
+        int nParts = Math.min(nPartitions, count / MIN_PARTITION_SIZE);
+        if (nParts <= 1) return new int[0];
+        int[] sample = new int[nParts * SAMPLES_PER_PARTITION];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < sample.length; i++)
+            sample[i] = values[random.nextInt(count)];
+        Arrays.sort(sample);
+        int[] splitters = new int[nParts - 1];
+        for (int i = 0; i < splitters.length; i++)
+            splitters[i] = sample[(i + 1) * SAMPLES_PER_PARTITION];
+        return splitters;
+    }
+
+    private static int partition(int[] splitters, int value) {
+        int lo = 0, hi = splitters.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (splitters[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Отсортировать часть на сервере, при ошибке — на следующем
+     *
+     * @return тело ответа сервера
+     */
+    private byte[] sortPartition(int index, byte[] frame) {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            Backend backend = backends.get((index + attempt) % backends.size());
+            try {
+                return backend.sort(frame);
+            } catch (IOException e) {
+                lastError = e;
+                System.err.println("partition " + index + " failed on " + backend + ": " + e + ", re-dispatching");
+            }
+        }
+        throw new UncheckedIOException("Partition " + index + " failed " + maxAttempts + " times", lastError);
+    }
+
+    /**
+     * Сервер, сортирующий части, с подключениями, которые можно использовать повторно
+     */
+    private static class Backend {
+        private final InetSocketAddress address;
+        private final ConcurrentLinkedQueue<Socket> idle = new ConcurrentLinkedQueue<>();
+
+        private Backend(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        static Backend parse(String hostPort) {
+            int colon = hostPort.lastIndexOf(':');
+            if (colon == -1) throw new IllegalArgumentException("Backend address must be host:port, got " + hostPort);
+            return new Backend(new InetSocketAddress(hostPort.substring(0, colon),
+                    Integer.parseInt(hostPort.substring(colon + 1))));
+        }
+
+        /**
+         * @param frame кадр запроса вместе с размером
+         */
+        byte[] sort(byte[] frame) throws IOException {
+            Socket socket = idle.poll();
+            if (socket == null) socket = connect();
+            boolean reusable = false;
+            try {
+                socket.getOutputStream().write(frame);
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+                int size = dis.readInt();
+                if (size == ServerUtil.OVERLOADED_FRAME_SIZE) {
+                    reusable = true;
+                    throw new IOException("backend is overloaded");
+                }
+                if (size != frame.length - 4)
+                    throw new IOException("response of " + size + " bytes for request of " + (frame.length - 4));
+                byte[] body = new byte[size];
+                dis.readFully(body);
+                reusable = true;
+                return body;
+            } finally {
+                if (reusable) {
+                    idle.add(socket);
+                } else {
+                    socket.close();
+                }
+            }
+        }
+
+        private Socket connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, (int) BACKEND_TIMEOUT_MS);
+                // Таймаут чтения: сколько ждать ответа на часть, прежде чем отдать её другому серверу
+                socket.setSoTimeout((int) BACKEND_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void closeIdle() throws IOException {
+            for (Socket socket; (socket = idle.poll()) != null; )
+                socket.close();
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostString() + ":" + address.getPort();
+        }
+    }
+}
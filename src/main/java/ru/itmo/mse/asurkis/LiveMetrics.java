@@ -0,0 +1,319 @@
+package ru.itmo.mse.asurkis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики работающего сервера, чтобы видеть происходящее во время замера, а не только после него.
+ * Доступны через JMX (MXBean {@code ru.itmo.mse.asurkis:type=LiveMetrics}) и, с {@code --metrics-port=<порт>},
+ * по HTTP {@code /metrics} на loopback в текстовом формате Prometheus.
+ * <p>
+ * Счётчики — {@link LongAdder}: потоки сервера увеличивают каждый свою ячейку, не соперничая за одну,
+ * а складывает ячейки только тот, кто читает метрики. Задержки пишутся в {@link Recorder} без блокировок.
+ * Раз в {@code --live-window-ms} окно задержек закрывается, процентили и запросы в секунду считаются
+ * по последнему закрытому окну, поэтому чтение метрик не сбрасывает ничего, что видят другие читатели.
+ */
+public class LiveMetrics {
+    private static final int HTTP_PORT = Options.getInt("metrics-port", 0);
+    private static final long WINDOW_MS = Options.getLong("live-window-ms", 5000);
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder responses = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final Recorder latency = new Recorder(3);
+
+    private record Window(Histogram latency, long durationNs) {
+    }
+
+    private static volatile Window lastWindow = new Window(new Histogram(3), 0);
+    private static long windowStartNs;
+    private static ExecutorService workerPool;
+    private static ScheduledExecutorService roller;
+    private static HttpServer httpServer;
+
+    /**
+     * Метрики для JMX, значения те же, что и в {@code /metrics}
+     */
+    public interface LiveMetricsMXBean {
+        long getActiveConnections();
+
+        long getInFlightRequests();
+
+        long getRequestsTotal();
+
+        long getRejectedTotal();
+
+        double getRequestsPerSecond();
+
+        /**
+         * -1, если у пула нет очереди, которую можно измерить
+         */
+        long getWorkerQueueDepth();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getBufferPoolAllocatedBytes();
+
+        long getBufferPoolRetainedBytes();
+
+        long getBufferPoolLeasedBuffers();
+
+        long getLatencyP50Ns();
+
+        long getLatencyP99Ns();
+
+        long getLatencyP999Ns();
+
+        long getLatencyMaxNs();
+    }
+
+    private static class View implements LiveMetricsMXBean {
+        @Override
+        public long getActiveConnections() {
+            return connectionsOpened.sum() - connectionsClosed.sum();
+        }
+
+        @Override
+        public long getInFlightRequests() {
+            // Ответы читаем раньше запросов, иначе между чтениями ответ мог бы обогнать учтённый запрос
+            long nResponses = responses.sum();
+            return Math.max(0, requests.sum() - nResponses);
+        }
+
+        @Override
+        public long getRequestsTotal() {
+            return requests.sum();
+        }
+
+        @Override
+        public long getRejectedTotal() {
+            return rejected.sum();
+        }
+
+        @Override
+        public double getRequestsPerSecond() {
+            Window window = lastWindow;
+            return window.durationNs == 0 ? 0 : window.latency.getTotalCount() * 1e9 / window.durationNs;
+        }
+
+        @Override
+        public long getWorkerQueueDepth() {
+            ExecutorService pool = workerPool;
+            if (pool instanceof BatchingExecutor batching) pool = batching.delegate();
+            if (pool instanceof ThreadPoolExecutor threadPool) return threadPool.getQueue().size();
+            if (pool instanceof ForkJoinPool forkJoin)
+                return forkJoin.getQueuedSubmissionCount() + forkJoin.getQueuedTaskCount();
+            return -1;
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public long getBufferPoolAllocatedBytes() {
+            return BufferPool.SHARED.allocatedBytes();
+        }
+
+        @Override
+        public long getBufferPoolRetainedBytes() {
+            return BufferPool.SHARED.retainedBytes();
+        }
+
+        @Override
+        public long getBufferPoolLeasedBuffers() {
+            return BufferPool.SHARED.leasedBuffers();
+        }
+
+        @Override
+        public long getLatencyP50Ns() {
+            return lastWindow.latency.getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getLatencyP99Ns() {
+            return lastWindow.latency.getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getLatencyP999Ns() {
+            return lastWindow.latency.getValueAtPercentile(99.9);
+        }
+
+        @Override
+        public long getLatencyMaxNs() {
+            return lastWindow.latency.getMaxValue();
+        }
+    }
+
+    private static final View VIEW = new View();
+    private static final ObjectName OBJECT_NAME = objectName();
+
+    private static ObjectName objectName() {
+        try {
+            return new ObjectName("ru.itmo.mse.asurkis:type=LiveMetrics");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Вызывается сервером перед приёмом подключений
+     *
+     * @param pool пул worker'ов, у которого измеряется очередь
+     */
+    static synchronized void start(ExecutorService pool) {
+        workerPool = pool;
+        windowStartNs = System.nanoTime();
+        // Счётчики общие на процесс: второй сервер в той же JVM продолжает те же метрики
+        if (roller != null) roller.shutdown();
+        roller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "live-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        roller.scheduleAtFixedRate(LiveMetrics::rollWindow, WINDOW_MS, WINDOW_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (!mBeanServer.isRegistered(OBJECT_NAME))
+                mBeanServer.registerMBean(VIEW, OBJECT_NAME);
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (HTTP_PORT > 0) {
+            try {
+                httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot listen for /metrics on port " + HTTP_PORT, e);
+            }
+            httpServer.createContext("/metrics", LiveMetrics::handleScrape);
+            httpServer.start();
+        }
+    }
+
+    /**
+     * Вызывается при завершении сервера: HTTP-сервер держит обычный поток, и процесс без этого не завершится.
+     * MXBean снимается с регистрации, чтобы сервер можно было снова запустить в той же JVM
+     */
+    static synchronized void stop() {
+        if (roller != null) roller.shutdown();
+        roller = null;
+        if (httpServer != null) httpServer.stop(0);
+        httpServer = null;
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mBeanServer.isRegistered(OBJECT_NAME))
+                mBeanServer.unregisterMBean(OBJECT_NAME);
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    static void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    static void requestReceived() {
+        requests.increment();
+    }
+
+    static void responseSent(Metrics metrics) {
+        responses.increment();
+        bytesIn.add(4 + metrics.payloadBytes);
+        if (metrics.rejected) {
+            rejected.increment();
+            bytesOut.add(4);
+            return;
+        }
+        bytesOut.add(metrics.responseBytes);
+        latency.recordValue(Math.max(0, metrics.responseSent - metrics.requestReceived));
+    }
+
+    private static synchronized void rollWindow() {
+        long now = System.nanoTime();
+        lastWindow = new Window(latency.getIntervalHistogram(), now - windowStartNs);
+        windowStartNs = now;
+    }
+
+    private static void handleScrape(HttpExchange exchange) throws IOException {
+        byte[] body = exposition().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Все метрики в текстовом формате Prometheus
+     */
+    static String exposition() {
+        StringBuilder out = new StringBuilder();
+        metric(out, "active_connections", "gauge", "Open client connections", VIEW.getActiveConnections());
+        metric(out, "in_flight_requests", "gauge", "Requests read but not yet answered", VIEW.getInFlightRequests());
+        metric(out, "requests_total", "counter", "Requests read", VIEW.getRequestsTotal());
+        metric(out, "rejected_total", "counter", "Requests rejected by the overloaded worker pool", VIEW.getRejectedTotal());
+        metric(out, "requests_per_second", "gauge", "Responses per second over the last window", VIEW.getRequestsPerSecond());
+        metric(out, "worker_queue_depth", "gauge", "Tasks waiting in the worker pool queue", VIEW.getWorkerQueueDepth());
+        metric(out, "bytes_in_total", "counter", "Request frame bytes", VIEW.getBytesIn());
+        metric(out, "bytes_out_total", "counter", "Response frame bytes", VIEW.getBytesOut());
+        metric(out, "buffer_pool_allocated_bytes", "gauge", "Direct buffers allocated by the pool", VIEW.getBufferPoolAllocatedBytes());
+        metric(out, "buffer_pool_retained_bytes", "gauge", "Free direct buffers kept by the pool", VIEW.getBufferPoolRetainedBytes());
+        metric(out, "buffer_pool_leased_buffers", "gauge", "Direct buffers currently leased", VIEW.getBufferPoolLeasedBuffers());
+
+        Histogram histogram = lastWindow.latency;
+        out.append("# HELP sort_server_response_latency_ns Response latency over the last window\n");
+        out.append("# TYPE sort_server_response_latency_ns gauge\n");
+        for (double quantile : new double[]{0.5, 0.99, 0.999, 1}) {
+            out.append(String.format(Locale.ROOT, "sort_server_response_latency_ns{quantile=\"%s\"} %d\n",
+                    quantile, histogram.getValueAtPercentile(quantile * 100)));
+        }
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, double value) {
+        out.append("# HELP sort_server_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE sort_server_").append(name).append(' ').append(type).append('\n');
+        out.append("sort_server_").append(name).append(' ');
+        if (value == Math.rint(value)) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.3f", value));
+        }
+        out.append('\n');
+    }
+}
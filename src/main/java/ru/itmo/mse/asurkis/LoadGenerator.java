@@ -0,0 +1,136 @@
+package ru.itmo.mse.asurkis;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки: много подключений из одного процесса, по виртуальному потоку на подключение.
+ * <p>
+ * В замкнутом цикле (по умолчанию) каждое подключение отправляет следующий запрос через {@code --delay-ms}
+ * после ответа на предыдущий, задержка считается от фактической отправки.
+ * <p>
+ * В открытом цикле ({@code --rate}, запросов в секунду на все подключения) запросы отправляются по расписанию,
+ * а задержка считается от запланированного момента отправки. Поэтому если сервер не успевает и запросы
+ * уходят позже расписания, это время тоже попадает в задержку (нет coordinated omission).
+ */
+public class LoadGenerator {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        args = Options.parse(args);
+        String serverAddress = args[0];
+        int serverPort = Integer.parseInt(args[1]);
+        int payloadSize = Integer.parseInt(args[2]);
+        int nConnections = Integer.parseInt(args[3]);
+        int nRequests = Integer.parseInt(args[4]);
+        new LoadGenerator(serverAddress, serverPort).execute(payloadSize, nConnections, nRequests);
+    }
+
+    private final String serverAddress;
+    private final int serverPort;
+
+    private final double rate = Double.parseDouble(Options.getString("rate", "0"));
+    private final long delayMs = Options.getLong("delay-ms", 0);
+    private final WireFormat wireFormat = WireFormat.byName(Options.getString("wire", "protobuf"));
+
+    private final Recorder latency = new Recorder(3);
+    private final LongAdder errors = new LongAdder();
+    /**
+     * Запросы, отклонённые перегруженным сервером, в задержку не попадают
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    public LoadGenerator(String serverAddress, int serverPort) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    public void execute(int payloadSize, int nConnections, int nRequests) throws InterruptedException {
+        int[] values = new int[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            values[i] = payloadSize - i;
+        byte[] requestBytes = wireFormat.encodeRequest(values);
+
+        // Интервал между запросами одного подключения в открытом цикле
+        long periodNs = rate > 0 ? (long) (nConnections * 1e9 / rate) : 0;
+
+        long start = System.nanoTime();
+        try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < nConnections; i++) {
+                // Разносим подключения по времени, чтобы запросы шли равномерно, а не пачками
+                long firstSendNs = start + (periodNs == 0 ? 0 : periodNs * i / nConnections);
+                connections.submit(() -> runConnection(requestBytes, payloadSize, nRequests, firstSendNs, periodNs));
+            }
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        Histogram histogram = latency.getIntervalHistogram();
+        System.out.println(MetricsRecorder.SUMMARY_HEADER);
+        MetricsRecorder.printSummary(System.out, "total", rate > 0 ? "latency_open_loop" : "latency_closed_loop",
+                histogram, elapsedNs);
+        if (errors.sum() > 0)
+            System.err.println("failed connections: " + errors.sum());
+        if (rejected.sum() > 0)
+            System.err.println("rejected requests: " + rejected.sum());
+    }
+
+    private void runConnection(byte[] requestBytes, int payloadSize, int nRequests, long firstSendNs, long periodNs) {
+        try (
+                Socket socket = new Socket(serverAddress, serverPort);
+                InputStream inputStream = socket.getInputStream();
+                OutputStream outputStream = socket.getOutputStream();
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+                BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream);
+                DataInputStream dis = new DataInputStream(bufferedInputStream);
+                DataOutputStream dos = new DataOutputStream(bufferedOutputStream)
+        ) {
+            socket.setTcpNoDelay(true);
+            if (wireFormat != WireFormat.PROTOBUF) {
+                dos.write(wireFormat.handshake);
+                dos.flush();
+                if (dis.readUnsignedByte() != wireFormat.handshake)
+                    throw new IOException("Server does not support wire format " + wireFormat);
+            }
+            byte[] responseBytes = new byte[0];
+            for (int i = 0; i < nRequests; i++) {
+                long sendNs;
+                if (periodNs > 0) {
+                    sendNs = firstSendNs + i * periodNs;
+                    long waitNs = sendNs - System.nanoTime();
+                    if (waitNs > 0) LockSupport.parkNanos(waitNs);
+                } else {
+                    sendNs = System.nanoTime();
+                }
+
+                dos.writeInt(requestBytes.length);
+                dos.write(requestBytes);
+                dos.flush();
+
+                int responseSize = dis.readInt();
+                if (responseSize == ServerUtil.OVERLOADED_FRAME_SIZE) {
+                    rejected.increment();
+                } else {
+                    if (responseBytes.length < responseSize)
+                        responseBytes = new byte[responseSize];
+                    dis.readFully(responseBytes, 0, responseSize);
+                    latency.recordValue(System.nanoTime() - sendNs);
+
+                    assert wireFormat.decodeResponse(ArrayCodec.get(), ByteBuffer.wrap(responseBytes, 0, responseSize))
+                            == payloadSize;
+                }
+
+                if (periodNs == 0 && delayMs > 0)
+                    Thread.sleep(delayMs);
+            }
+        } catch (IOException | InterruptedException e) {
+            errors.increment();
+            System.err.println(e);
+        }
+    }
+}
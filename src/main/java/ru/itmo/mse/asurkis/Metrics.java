@@ -1,9 +1,41 @@
 package ru.itmo.mse.asurkis;
 
 public class Metrics {
+    /**
+     * Порядковый номер подключения на сервере и размер тела запроса, нужны только для {@link MetricsLog}
+     */
+    public long connectionId;
+    public int payloadBytes;
+    /**
+     * Размер кадра ответа вместе с заголовком, нужен только для {@link LiveMetrics}
+     */
+    public long responseBytes;
+
     public long processingStart;
     public long processingFinish;
 
     public long requestReceived;
     public long responseSent;
+
+    // Этапы для StageTracer, заполняются только с --trace.
+    // Прочтение тела — requestReceived, выход из очереди — processingStart,
+    // конец сериализации — processingFinish, конец отправки — responseSent
+    public long headerRead;
+    public long enqueued;
+    public long decoded;
+    public long sorted;
+    /**
+     * Ответ стал следующим на отправку: его подхватил поток отправки или он встал в очередь записи
+     */
+    public long writeReady;
+
+    /**
+     * Сколько операций чтения понадобилось на запрос вместе с заголовком (только nonblocking и async)
+     */
+    public int nReads;
+
+    /**
+     * Запрос отклонён из-за перегрузки и не обрабатывался, в гистограммы задержек он не попадает
+     */
+    public boolean rejected;
 }
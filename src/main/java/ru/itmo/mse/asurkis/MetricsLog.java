@@ -0,0 +1,193 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Двоичный журнал метрик запросов ({@code --metrics-log=<файл>}), замена построчному CSV в stdout.
+ * <p>
+ * Файл только дописывается и отображается в память сегментами по {@link #SEGMENT_RECORDS} записей.
+ * Поток, отправивший ответ, занимает номер записи атомарным счётчиком и пишет её прямо в свой сегмент,
+ * без системных вызовов. Фоновый поток сбрасывает заполненные сегменты на диск и отпускает их.
+ * Пишущие потоки берут общую блокировку чтения и друг другу не мешают, а {@link #close()} — исключительную:
+ * файл обрезается, только когда ни один поток уже не пишет в отображение, иначе запись за новым концом файла
+ * завершила бы процесс по SIGBUS.
+ * <p>
+ * Формат: заголовок {@link #HEADER_BYTES} байт, затем записи по {@link #RECORD_BYTES} байт, little-endian.
+ * Заголовок — {@code magic, version, recordBytes, reserved} (int), затем {@code startEpochMs, startNanoTime} (long),
+ * по которым время из {@link System#nanoTime()} переводится в настенное.
+ * Запись — {@code timestampMs, connectionId} (long), {@code payloadBytes, flags} (int),
+ * четыре основных момента из {@link Metrics} (long), затем этапы {@link StageTracer}:
+ * {@code headerRead, enqueued, decoded, sorted, writeReady} (long, 0 без {@code --trace}) и {@code nReads, reserved} (int).
+ * Читается {@link MetricsLogReader}.
+ */
+public class MetricsLog implements Closeable {
+    static final int MAGIC = 0x534D4C47;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 104;
+
+    static final int FLAG_REJECTED = 1;
+    static final int FLAG_WARMUP = 2;
+
+    private static final int SEGMENT_RECORDS = 1 << 16;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_BYTES;
+    private static final long FLUSH_INTERVAL_MS = 200;
+
+    /**
+     * {@code null}, если журнал не включён
+     */
+    static final MetricsLog SHARED = open(Options.getString("metrics-log", ""));
+
+    private static MetricsLog open(String path) {
+        if (path.isEmpty()) return null;
+        try {
+            return new MetricsLog(Path.of(path));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open metrics log " + path, e);
+        }
+    }
+
+    private static class Segment {
+        final MappedByteBuffer buffer;
+        final AtomicInteger nWritten = new AtomicInteger();
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final FileChannel channel;
+    private final AtomicLong nextRecord = new AtomicLong();
+    // Конец последней записанной записи: занятая запись могла не записаться, если отобразить сегмент не удалось
+    private final AtomicLong writtenRecords = new AtomicLong();
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    // Меняется под closeLock
+    private boolean closed = false;
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-log-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MetricsLog(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).putInt(0);
+        header.putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+        header.flip();
+        channel.write(header, 0);
+
+        flusher.scheduleWithFixedDelay(this::flushFull, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Дописать запись о запросе. Может вызываться из любых потоков одновременно
+     */
+    void append(Metrics metrics, int flags) {
+        closeLock.readLock().lock();
+        try {
+            // Ответы, отправленные после печати итоговых метрик, не учитываются и в журнале
+            if (!closed) write(metrics, flags);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void write(Metrics metrics, int flags) {
+        long index = nextRecord.getAndIncrement();
+        Segment segment = segments.computeIfAbsent(index / SEGMENT_RECORDS, this::map);
+        int offset = (int) (index % SEGMENT_RECORDS) * RECORD_BYTES;
+
+        // Абсолютная запись не трогает позицию буфера, поэтому разные потоки пишут в разные записи независимо
+        MappedByteBuffer buf = segment.buffer;
+        buf.putLong(offset, System.currentTimeMillis());
+        buf.putLong(offset + 8, metrics.connectionId);
+        buf.putInt(offset + 16, metrics.payloadBytes);
+        buf.putInt(offset + 20, flags);
+        buf.putLong(offset + 24, metrics.requestReceived);
+        buf.putLong(offset + 32, metrics.processingStart);
+        buf.putLong(offset + 40, metrics.processingFinish);
+        buf.putLong(offset + 48, metrics.responseSent);
+        buf.putLong(offset + 56, metrics.headerRead);
+        buf.putLong(offset + 64, metrics.enqueued);
+        buf.putLong(offset + 72, metrics.decoded);
+        buf.putLong(offset + 80, metrics.sorted);
+        buf.putLong(offset + 88, metrics.writeReady);
+        buf.putInt(offset + 96, metrics.nReads);
+        segment.nWritten.incrementAndGet();
+        writtenRecords.accumulateAndGet(index + 1, Math::max);
+    }
+
+    private Segment map(long segmentIndex) {
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_BYTES + segmentIndex * SEGMENT_BYTES, SEGMENT_BYTES);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new Segment(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Сбросить на диск заполненные сегменты и перестать их держать
+     */
+    private void flushFull() {
+        closeLock.readLock().lock();
+        try {
+            if (closed) return;
+            segments.entrySet().removeIf(entry -> {
+                Segment segment = entry.getValue();
+                if (segment.nWritten.get() < SEGMENT_RECORDS) return false;
+                segment.buffer.force();
+                return true;
+            });
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сбросить всё записанное и обрезать файл по последней записи
+     */
+    @Override
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            flusher.shutdown();
+            for (Segment segment : segments.values())
+                segment.buffer.force();
+            segments.clear();
+            channel.truncate(HEADER_BYTES + writtenRecords.get() * RECORD_BYTES);
+            channel.close();
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "metrics log: records=" + writtenRecords.get();
+    }
+}
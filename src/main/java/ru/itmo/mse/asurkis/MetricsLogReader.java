@@ -0,0 +1,178 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Перевод двоичного {@link MetricsLog} в форматы для анализа:
+ * <ul>
+ *     <li>{@code --format=csv} (по умолчанию) — CSV в stdout;</li>
+ *     <li>{@code --format=columns --out=<каталог>} — по файлу на столбец, массив little-endian чисел
+ *     ({@code .i64} или {@code .i32}), который читается {@code numpy.fromfile} без разбора текста.</li>
+ * </ul>
+ * Кроме полей записи выводятся {@code processing_ns} и {@code response_ns}, как в прежнем CSV сервера.
+ * Длительности этапов {@link StageTracer} считаются из моментов {@code *_ns} при анализе.
+ */
+public class MetricsLogReader {
+    public static void main(String[] args) throws IOException {
+        args = Options.parse(args);
+        Path path = Path.of(args[0]);
+        switch (Options.getString("format", "csv")) {
+            case "csv" -> toCsv(path, System.out);
+            case "columns" -> toColumns(path, Path.of(Options.getString("out", path + ".columns")));
+            default -> throw new IllegalArgumentException("Unknown format, expected csv or columns");
+        }
+    }
+
+    /**
+     * Столбец вывода: значение из записи, начинающейся с {@code pos}, и ширина в файле столбцов
+     */
+    private record Column(String name, int bytes, ColumnValue value) {
+        static Column ofLong(String name, int offset) {
+            return new Column(name, 8, (record, pos) -> record.getLong(pos + offset));
+        }
+
+        static Column ofInt(String name, int offset) {
+            return new Column(name, 4, (record, pos) -> record.getInt(pos + offset));
+        }
+
+        static Column ofDifference(String name, int fromOffset, int toOffset) {
+            return new Column(name, 8, (record, pos) -> record.getLong(pos + toOffset) - record.getLong(pos + fromOffset));
+        }
+    }
+
+    private interface ColumnValue {
+        long get(ByteBuffer record, int pos);
+    }
+
+    private static final Column[] COLUMNS = {
+            Column.ofLong("timestamp_ms", 0),
+            Column.ofLong("connection_id", 8),
+            Column.ofInt("payload_bytes", 16),
+            Column.ofInt("flags", 20),
+            Column.ofLong("request_received_ns", 24),
+            Column.ofLong("processing_start_ns", 32),
+            Column.ofLong("processing_finish_ns", 40),
+            Column.ofLong("response_sent_ns", 48),
+            Column.ofLong("header_read_ns", 56),
+            Column.ofLong("enqueued_ns", 64),
+            Column.ofLong("decoded_ns", 72),
+            Column.ofLong("sorted_ns", 80),
+            Column.ofLong("write_ready_ns", 88),
+            Column.ofInt("n_reads", 96),
+            Column.ofDifference("processing_ns", 32, 40),
+            Column.ofDifference("response_ns", 24, 48),
+    };
+
+    private static final int RECORDS_PER_READ = 1 << 14;
+
+    private interface RecordConsumer {
+        void accept(ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Прочитать журнал, передавая записи по одной. Позиция буфера стоит на начале записи
+     */
+    private static void forEachRecord(Path path, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(MetricsLog.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) != -1) ;
+            header.flip();
+            if (header.remaining() < MetricsLog.HEADER_BYTES || header.getInt() != MetricsLog.MAGIC)
+                throw new IOException(path + " is not a metrics log");
+            int version = header.getInt();
+            int recordBytes = header.getInt();
+            if (version != MetricsLog.VERSION || recordBytes != MetricsLog.RECORD_BYTES)
+                throw new IOException("Unsupported metrics log version " + version);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS_PER_READ * recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+            while (channel.read(buffer) != -1 || buffer.position() > 0) {
+                buffer.flip();
+                if (buffer.remaining() < recordBytes) break;
+                while (buffer.remaining() >= recordBytes) {
+                    int start = buffer.position();
+                    // Если сервер не успел обрезать файл, в конце остаются пустые записи
+                    if (buffer.getLong(start) != 0)
+                        consumer.accept(buffer);
+                    buffer.position(start + recordBytes);
+                }
+                buffer.compact();
+            }
+        }
+    }
+
+    static void toCsv(Path path, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder line = new StringBuilder();
+        for (Column column : COLUMNS)
+            line.append(line.isEmpty() ? "" : ",").append(column.name());
+        writer.write(line.append('\n').toString());
+        forEachRecord(path, record -> {
+            int pos = record.position();
+            line.setLength(0);
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) line.append(',');
+                line.append(COLUMNS[i].value().get(record, pos));
+            }
+            writer.write(line.append('\n').toString());
+        });
+        writer.flush();
+    }
+
+    static void toColumns(Path path, Path outDir) throws IOException {
+        Files.createDirectories(outDir);
+        FileChannel[] channels = new FileChannel[COLUMNS.length];
+        ByteBuffer[] buffers = new ByteBuffer[COLUMNS.length];
+        try {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                Column column = COLUMNS[i];
+                channels[i] = openColumn(outDir.resolve(column.name() + (column.bytes() == 8 ? ".i64" : ".i32")));
+                buffers[i] = ByteBuffer.allocateDirect(RECORDS_PER_READ * column.bytes()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            long[] nRecords = {0};
+            forEachRecord(path, record -> {
+                int pos = record.position();
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    long value = COLUMNS[i].value().get(record, pos);
+                    if (COLUMNS[i].bytes() == 8) {
+                        buffers[i].putLong(value);
+                    } else {
+                        buffers[i].putInt((int) value);
+                    }
+                }
+                // Все буферы вмещают одинаковое число записей, достаточно проверить один
+                if (!buffers[0].hasRemaining())
+                    flushColumns(channels, buffers);
+                nRecords[0]++;
+            });
+            flushColumns(channels, buffers);
+            System.err.println("records: " + nRecords[0] + ", columns in " + outDir);
+        } finally {
+            for (FileChannel channel : channels) if (channel != null) channel.close();
+        }
+    }
+
+    private static FileChannel openColumn(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    private static void flushColumns(FileChannel[] channels, ByteBuffer[] buffers) throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            buffers[i].flip();
+            while (buffers[i].hasRemaining()) channels[i].write(buffers[i]);
+            buffers[i].clear();
+        }
+    }
+}
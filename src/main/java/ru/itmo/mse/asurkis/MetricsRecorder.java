@@ -0,0 +1,163 @@
+package ru.itmo.mse.asurkis;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сбор метрик запросов в гистограммы HdrHistogram.
+ * Запись в {@link Recorder} не берёт блокировок, поэтому потоки, отправляющие ответы, не мешают друг другу.
+ * Гистограммы сводятся и печатаются раз в {@code --metrics-interval-ms} (если задан) и при завершении сервера.
+ * <p>
+ * С {@code --metrics=raw} дополнительно печатается строка CSV на каждый запрос, как раньше;
+ * сводка тогда уходит в stderr, чтобы не ломать CSV.
+ * <p>
+ * Первые {@code --warmup-requests} запросов не учитываются: пока JIT не скомпилировал горячий код,
+ * задержки не отражают установившийся режим.
+ * <p>
+ * С {@code --metrics-log=<файл>} каждый запрос ещё и дописывается в двоичный {@link MetricsLog}.
+ */
+public class MetricsRecorder {
+    private static final boolean RAW = switch (Options.getString("metrics", "summary")) {
+        case "summary" -> false;
+        case "raw" -> true;
+        default -> throw new IllegalArgumentException("Unknown metrics mode, expected summary or raw");
+    };
+    private static final MetricsLog LOG = MetricsLog.SHARED;
+    private static final long INTERVAL_MS = Options.getLong("metrics-interval-ms", 0);
+    private static final AtomicLong warmupRemaining = new AtomicLong(Options.getLong("warmup-requests", 0));
+
+    static final String SUMMARY_HEADER = "scope,metric,count,throughput_rps,p50_ns,p99_ns,p999_ns,max_ns";
+
+    private static final Recorder processing = new Recorder(3);
+    private static final Recorder response = new Recorder(3);
+
+    // Накопленные с начала работы, меняются только под блокировкой класса
+    private static final Histogram totalProcessing = new Histogram(3);
+    private static final Histogram totalResponse = new Histogram(3);
+    private static Histogram intervalProcessing = null;
+    private static Histogram intervalResponse = null;
+
+    private static long startNs;
+    private static long intervalStartNs;
+    private static ScheduledExecutorService reporter = null;
+    private static boolean finished = false;
+
+    /**
+     * Вызывается сервером перед приёмом подключений
+     */
+    public static synchronized void start() {
+        startNs = intervalStartNs = System.nanoTime();
+        if (RAW) System.out.println("processing_ns,response_ns");
+        summaryStream().println(SUMMARY_HEADER);
+
+        if (INTERVAL_MS > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(MetricsRecorder::reportInterval, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void record(Metrics metrics) {
+        boolean warmup = false;
+        if (warmupRemaining.get() > 0) {
+            long remaining = warmupRemaining.decrementAndGet();
+            if (remaining == 0) finishWarmup();
+            warmup = remaining >= 0;
+        }
+        // В журнал попадают все запросы, отбросить прогрев и отклонённые можно при анализе
+        if (LOG != null) {
+            int flags = (metrics.rejected ? MetricsLog.FLAG_REJECTED : 0) | (warmup ? MetricsLog.FLAG_WARMUP : 0);
+            LOG.append(metrics, flags);
+        }
+        // Отклонённые запросы учитывает пул worker'ов
+        if (warmup || metrics.rejected) return;
+        if (StageTracer.ENABLED) StageTracer.record(metrics);
+
+        long processingNs = metrics.processingFinish - metrics.processingStart;
+        long responseNs = metrics.responseSent - metrics.requestReceived;
+        processing.recordValue(processingNs);
+        response.recordValue(responseNs);
+
+        if (RAW) {
+            synchronized (System.out) {
+                System.out.printf("%d,%d\n", processingNs, responseNs);
+            }
+        }
+    }
+
+    private static synchronized void finishWarmup() {
+        startNs = intervalStartNs = System.nanoTime();
+    }
+
+    /**
+     * Вызывается сервером после обработки последнего запроса. Повторные вызовы ничего не делают
+     */
+    public static synchronized void finish() {
+        if (finished) return;
+        finished = true;
+        if (reporter != null) reporter.shutdown();
+        LiveMetrics.stop();
+        reportInterval();
+        long elapsedNs = System.nanoTime() - startNs;
+        print("total", "processing", totalProcessing, elapsedNs);
+        print("total", "response", totalResponse, elapsedNs);
+        if (StageTracer.ENABLED) StageTracer.printTotals(summaryStream(), elapsedNs);
+        summaryStream().flush();
+        if (ResponseCache.SHARED != null)
+            System.err.println(ResponseCache.SHARED);
+        if (LOG != null) {
+            try {
+                LOG.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            System.err.println(LOG);
+        }
+    }
+
+    private static synchronized void reportInterval() {
+        intervalProcessing = processing.getIntervalHistogram(intervalProcessing);
+        intervalResponse = response.getIntervalHistogram(intervalResponse);
+        totalProcessing.add(intervalProcessing);
+        totalResponse.add(intervalResponse);
+
+        long now = System.nanoTime();
+        if (INTERVAL_MS > 0) {
+            print("interval", "processing", intervalProcessing, now - intervalStartNs);
+            print("interval", "response", intervalResponse, now - intervalStartNs);
+        }
+        intervalStartNs = now;
+    }
+
+    private static void print(String scope, String metric, Histogram histogram, long elapsedNs) {
+        printSummary(summaryStream(), scope, metric, histogram, elapsedNs);
+    }
+
+    /**
+     * Строка сводки в формате {@link #SUMMARY_HEADER}
+     */
+    static void printSummary(PrintStream out, String scope, String metric, Histogram histogram, long elapsedNs) {
+        double throughput = elapsedNs == 0 ? 0 : histogram.getTotalCount() * 1e9 / elapsedNs;
+        out.printf(Locale.ROOT, "%s,%s,%d,%.1f,%d,%d,%d,%d\n",
+                scope, metric, histogram.getTotalCount(), throughput,
+                histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99),
+                histogram.getValueAtPercentile(99.9),
+                histogram.getMaxValue());
+    }
+
+    private static PrintStream summaryStream() {
+        return RAW ? System.err : System.out;
+    }
+}
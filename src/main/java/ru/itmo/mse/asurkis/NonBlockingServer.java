@@ -2,20 +2,24 @@ package ru.itmo.mse.asurkis;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class NonBlockingServer {
     public static void main(String[] args) throws IOException {
+        args = Options.parse(args);
         int port = Integer.parseInt(args[0]);
         int nClients = Integer.parseInt(args[1]);
         new NonBlockingServer(port).start(nClients);
@@ -24,160 +28,450 @@ public class NonBlockingServer {
     private final ExecutorService workerPool;
     private final int port;
 
-    private final Selector readSelector = Selector.open();
-    private final Selector writeSelector = Selector.open();
+    /**
+     * Каждый цикл обрабатывает и чтение, и запись своих подключений.
+     * С несколькими слушающими сокетами у каждого свои циклы: {@code i % ACCEPTORS == shard}
+     */
+    private final EventLoop[] eventLoops;
+    private final boolean leastLoaded;
+    /**
+     * Следующий цикл для round-robin, у каждого принимающего потока свой
+     */
+    private final int[] nextEventLoop = new int[ServerUtil.ACCEPTORS];
+    /**
+     * Worker, закончивший запрос, сам пишет готовые ответы в сокет, не передавая запись циклу событий
+     */
+    private final boolean directWrite = Options.getBoolean("direct-write", false);
 
     public NonBlockingServer(int port) throws IOException {
         this.port = port;
         Runtime runtime = Runtime.getRuntime();
         int nProcessors = runtime.availableProcessors();
-        workerPool = Executors.newFixedThreadPool(nProcessors);
+        workerPool = ServerUtil.newWorkerPool(nProcessors);
+
+        int nSelectors = Options.getInt("selectors", Math.max(1, nProcessors / 2));
+        // Каждому принимающему потоку хотя бы один цикл
+        eventLoops = new EventLoop[Math.max(nSelectors, ServerUtil.ACCEPTORS)];
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop();
+        for (int shard = 0; shard < nextEventLoop.length; shard++)
+            nextEventLoop[shard] = shard;
+
+        leastLoaded = switch (Options.getString("balance", "round-robin")) {
+            case "round-robin" -> false;
+            case "least-loaded" -> true;
+            default -> throw new IllegalArgumentException("Unknown balance mode, expected round-robin or least-loaded");
+        };
     }
 
-    private final AtomicInteger remainingClients = new AtomicInteger();
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
 
     public void start(int nClients) throws IOException {
-        System.out.println("processing_ns,response_ns");
-        remainingClients.set(nClients);
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            for (int i = 0; i < ServerUtil.ACCEPTORS; i++)
+                listeners.add(ServerUtil.bindListener(ServerSocketChannel.open(), port));
+            lifecycle.start(nClients, ServerUtil.closeAll(listeners), workerPool);
 
-        Thread readThread = new Thread(this::runReadThread);
-        readThread.start();
+            for (EventLoop eventLoop : eventLoops)
+                eventLoop.thread.start();
 
-        Thread writeThread = new Thread(this::runWriteThread);
-        writeThread.start();
+            ServerUtil.runAcceptors(listeners, this::acceptClients);
+        } finally {
+            ServerUtil.closeAll(listeners).close();
+        }
+    }
 
-        try (
-                ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()
-        ) {
-            serverSocketChannel.bind(new InetSocketAddress(port));
-            for (int i = 0; i < nClients; i++) {
-                SocketChannel channel = serverSocketChannel.accept();
-                Client client = new Client(channel);
-                client.start();
+    private void acceptClients(ServerSocketChannel serverSocketChannel, int shard) throws IOException {
+        while (lifecycle.shouldAccept()) {
+            SocketChannel channel;
+            try {
+                channel = serverSocketChannel.accept();
+            } catch (AsynchronousCloseException e) {
+                // Сокет закрыт по сигналу завершения или после приёма последнего клиента другим потоком
+                if (!lifecycle.shouldAccept()) break;
+                throw e;
             }
+            int connectionId = lifecycle.clientAccepted();
+            Client client = new Client(channel, chooseEventLoop(shard), connectionId);
+            client.start();
         }
     }
 
-    private void runReadThread() {
-        try {
-            while (remainingClients.get() > 0) {
-                readSelector.select();
-                Set<SelectionKey> selectedKeys = readSelector.selectedKeys();
-                Iterator<SelectionKey> iter = selectedKeys.iterator();
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    Client client = (Client) key.attachment();
-                    client.handleRead();
-                    iter.remove();
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Вызывается только из принимающего подключения потока {@code shard}, выбирает из его циклов
+     */
+    private EventLoop chooseEventLoop(int shard) {
+        int nShards = ServerUtil.ACCEPTORS;
+        if (!leastLoaded) {
+            EventLoop eventLoop = eventLoops[nextEventLoop[shard]];
+            nextEventLoop[shard] += nShards;
+            if (nextEventLoop[shard] >= eventLoops.length) nextEventLoop[shard] = shard;
+            return eventLoop;
         }
+        EventLoop best = eventLoops[shard];
+        for (int i = shard; i < eventLoops.length; i += nShards) {
+            if (eventLoops[i].nConnections.get() < best.nConnections.get())
+                best = eventLoops[i];
+        }
+        return best;
     }
 
-    private void runWriteThread() {
-        try {
-            while (remainingClients.get() > 0) {
-                writeSelector.select();
-                Set<SelectionKey> selectedKeys = writeSelector.selectedKeys();
-                Iterator<SelectionKey> iter = selectedKeys.iterator();
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    Client client = (Client) key.attachment();
-                    client.handleWrite();
-                    iter.remove();
+    private class EventLoop implements Runnable {
+        private final Selector selector = Selector.open();
+        private final Thread thread = new Thread(this);
+        private final AtomicInteger nConnections = new AtomicInteger();
+
+        private EventLoop() throws IOException {
+        }
+
+        @Override
+        public void run() {
+            // Простаивающие подключения проверяем не реже, чем раз в половину таймаута.
+            // select(0) ждёт без ограничения, поэтому ждём хотя бы 1 мс
+            long selectTimeoutMs = ServerLifecycle.IDLE_TIMEOUT_MS > 0
+                    ? Math.max(1, ServerLifecycle.IDLE_TIMEOUT_MS / 2)
+                    : 0;
+            try {
+                while (lifecycle.isRunning()) {
+                    selector.select(selectTimeoutMs);
+                    if (ServerLifecycle.IDLE_TIMEOUT_MS > 0) closeIdle();
+                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    Iterator<SelectionKey> iter = selectedKeys.iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        Client client = (Client) key.attachment();
+                        if (key.isValid() && key.isReadable()) client.handleRead();
+                        if (key.isValid() && key.isWritable()) client.handleWrite();
+                    }
                 }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void closeIdle() throws IOException {
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                Client client = (Client) key.attachment();
+                if (key.isValid() && client.isIdle(now)) client.close();
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        }
+
+        /**
+         * Изменения интересующих событий из своего потока селектор увидит сам на следующем {@code select},
+         * будить его нужно только из чужих потоков
+         */
+        private void wakeupIfForeign() {
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
         }
     }
 
-    private class Client implements Closeable {
+    private class Client implements Closeable, WorkerTask.Source {
         private final SocketChannel channel;
-        private final SelectionKey readKey;
-        private final SelectionKey writeKey;
-        private final Metrics metrics = new Metrics();
+        private final long id;
+        private final EventLoop eventLoop;
+        private final SelectionKey key;
+        private final RequestQueue requests = new RequestQueue(ServerUtil.MAX_IN_FLIGHT);
 
-        private ByteBuffer buffer = ByteBuffer.allocate(ServerUtil.START_CAPACITY_BYTES);
+        // Буфер читаемого запроса, после прочтения переходит в Request
+        private ByteBuffer buffer;
         private Runnable nextOp = null;
+        // Ответы текущей записи, ими пользуется только владелец записи из RequestQueue:
+        // поток цикла или worker при directWrite. Больше MAX_IN_FLIGHT ответов не накопится
+        private final Request[] writeBatch = new Request[ServerUtil.MAX_IN_FLIGHT];
+        private final ByteBuffer[] writeBuffers = new ByteBuffer[ServerUtil.MAX_IN_FLIGHT];
+        private long lastActivityNs = System.nanoTime();
+        // Клиент закончил отправлять запросы, подключение закроется после отправки последнего ответа
+        private volatile boolean inputClosed = false;
+        // Меняется только рукопожатием до первого запроса
+        private WireFormat format = WireFormat.PROTOBUF;
+        // Для StageTracer: когда прочитан заголовок читаемого запроса и за сколько чтений
+        private long headerReadNs;
+        private int nReads;
 
-        private Client(SocketChannel channel) throws IOException {
+        private Client(SocketChannel channel, EventLoop eventLoop, long id) throws IOException {
             this.channel = channel;
+            this.id = id;
+            this.eventLoop = eventLoop;
+            buffer = BufferPool.SHARED.lease(ServerUtil.START_CAPACITY_BYTES);
             channel.configureBlocking(false);
             // Пока не подготовили буфер, не интересуемся событиями
-            readKey = channel.register(readSelector, 0, this);
-            writeKey = channel.register(writeSelector, 0, this);
+            key = channel.register(eventLoop.selector, 0, this);
+            eventLoop.nConnections.incrementAndGet();
         }
 
         @Override
         public void close() throws IOException {
-            readKey.cancel();
-            writeKey.cancel();
+            synchronized (requests) {
+                // Закрыть могут и цикл событий, и worker, отправивший последний ответ
+                if (!key.isValid()) return;
+                key.cancel();
+                // Буферы отправляемых и обрабатываемых запросов вернут в пул владелец записи и worker'ы
+                requests.close();
+            }
             channel.close();
-            if (remainingClients.decrementAndGet() == 0) {
-                readSelector.wakeup();
-                writeSelector.wakeup();
+            BufferPool.SHARED.release(buffer);
+            buffer = null;
+            eventLoop.nConnections.decrementAndGet();
+            if (lifecycle.clientClosed()) {
+                for (EventLoop loop : eventLoops)
+                    loop.selector.wakeup();
                 workerPool.shutdown();
+                MetricsRecorder.finish();
+                System.err.println(BufferPool.SHARED);
             }
         }
 
         private void start() {
+            buffer.clear();
+            buffer.limit(1);
+            nextOp = this::onReadFirstByte;
+            updateInterestOps();
+        }
+
+        private void startRead() {
+            nReads = 0;
             buffer.clear();
             buffer.limit(4);
             nextOp = this::onReadSize;
-            readKey.interestOps(SelectionKey.OP_READ);
-            readSelector.wakeup();
+        }
+
+        /**
+         * Чтение и запись идут одновременно: читаем, пока не накопилось слишком много запросов,
+         * и ждём готовности к записи, только если запись сейчас за циклом событий
+         */
+        private void updateInterestOps() {
+            synchronized (requests) {
+                if (!key.isValid()) return;
+                int ops = 0;
+                if (!inputClosed && !requests.isReadingPaused()) ops |= SelectionKey.OP_READ;
+                if (requests.isAwaitingWritable()) ops |= SelectionKey.OP_WRITE;
+                // Селектор уже ждёт этих событий, будить его незачем
+                if (key.interestOps() == ops) return;
+                key.interestOps(ops);
+            }
+            eventLoop.wakeupIfForeign();
+        }
+
+        /**
+         * Первый байт подключения: либо рукопожатие {@link WireFormat}, либо начало размера первого кадра
+         */
+        private void onReadFirstByte() {
+            int first = buffer.get(0) & 0xFF;
+            if (!WireFormat.isHandshake(first)) {
+                buffer.limit(4);
+                nextOp = this::onReadSize;
+                return;
+            }
+            try {
+                format = WireFormat.byHandshake(first);
+                // До первого ответа в сокет ничего не писали, байт подтверждения поместится в его буфер
+                if (channel.write(ByteBuffer.wrap(new byte[]{(byte) first})) != 1)
+                    throw new IOException("Wire format handshake is not sent");
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                closeQuietly();
+                return;
+            }
+            startRead();
         }
 
         private void onReadSize() {
             buffer.flip();
             int size = buffer.getInt();
-            buffer = ServerUtil.ensureLimit(buffer, size);
+            headerReadNs = StageTracer.now();
+            try {
+                buffer = BufferPool.SHARED.ensureLimit(buffer, size);
+            } catch (IOException e) {
+                // Размер отрицательный или больше допустимого для подключения, дальше читать запрос бессмысленно
+                System.err.println(e.getMessage());
+                closeQuietly();
+                return;
+            }
             nextOp = this::onReadArray;
         }
 
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         private void onReadArray() {
-            readKey.interestOps(0);
-            nextOp = null;
-            metrics.requestReceived = System.nanoTime();
-            workerPool.submit(this::processRequest);
+            Request request = new Request(buffer);
+            request.metrics.requestReceived = System.nanoTime();
+            request.metrics.connectionId = id;
+            request.metrics.payloadBytes = buffer.limit();
+            request.metrics.headerRead = headerReadNs;
+            request.metrics.nReads = nReads;
+            lifecycle.requestReceived();
+            // Буфер для следующего запроса нужен до передачи этого пулу: отклонённый запрос
+            // может тут же получить последний ответ, и подключение закроется вместе с буфером
+            try {
+                buffer = BufferPool.SHARED.lease(ServerUtil.START_CAPACITY_BYTES);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            // Запрос должен попасть в очередь раньше, чем worker отметит его обработанным
+            boolean readMore = requests.add(request);
+            // После сигнала завершения новые запросы не читаем, подключение закроется после последнего ответа
+            if (lifecycle.isStopping()) inputClosed = true;
+            request.metrics.enqueued = StageTracer.now();
+            ServerUtil.execute(workerPool, new WorkerTask(() -> processRequest(request), () -> rejectRequest(request), this));
+
+            if (inputClosed) {
+                updateInterestOps();
+                return;
+            }
+            startRead();
+            // Пул мог отложить запрос, тогда не читаем, пока он не попадёт в очередь
+            if (!readMore || !requests.continueReading())
+                updateInterestOps();
         }
 
-        private void onWrite() {
-            writeKey.interestOps(0);
-            metrics.responseSent = System.nanoTime();
-            ServerUtil.printMetrics(metrics);
-            start();
+        @Override
+        public void pauseReading() {
+            requests.park();
         }
 
-        private void processRequest() {
-            try {
-                metrics.processingStart = System.nanoTime();
-                buffer = ServerUtil.processPayload(buffer);
-                metrics.processingFinish = System.nanoTime();
-                nextOp = this::onWrite;
+        @Override
+        public void resumeReading() {
+            if (requests.unpark())
+                updateInterestOps();
+        }
+
+        /**
+         * @return владеет ли вызвавший записью и дальше, то есть готов ли следующий ответ
+         */
+        private boolean onWrite(Request request) {
+            request.metrics.responseSent = System.nanoTime();
+            lifecycle.responseSent(request.metrics);
+            BufferPool.SHARED.release(request.buffer);
+            request.buffer = null;
+
+            Request next = requests.poll();
+            if (next == null && inputClosed && requests.isEmpty()) {
+                closeQuietly();
+                return false;
+            }
+            if (requests.resumeReading() || next == null)
+                updateInterestOps();
+            return next != null;
+        }
 
-                writeKey.interestOps(SelectionKey.OP_WRITE);
-                writeSelector.wakeup();
+        private void processRequest(Request request) {
+            try {
+                request.metrics.processingStart = System.nanoTime();
+                request.buffer = ServerUtil.processPayload(request.buffer, format, request.metrics);
+                request.metrics.processingFinish = System.nanoTime();
+                onProcessed(request);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
 
+        /**
+         * Пул перегружен: вместо ответа отправляем кадр ошибки в буфере запроса
+         */
+        private void rejectRequest(Request request) {
+            request.metrics.rejected = true;
+            request.buffer = ServerUtil.overloadedResponse(request.buffer);
+            onProcessed(request);
+        }
+
+        private void onProcessed(Request request) {
+            if (requests.complete(request) == null) return;
+            if (directWrite) {
+                writeFromWorker();
+            } else {
+                requests.awaitWritable();
+                updateInterestOps();
+            }
+        }
+
+        /**
+         * Запись начал этот worker: отправляем ответы сами, пока сокет их принимает.
+         * Цикл событий подключается, только если буфер сокета заполнился, — тогда нужен OP_WRITE
+         */
+        private void writeFromWorker() {
+            try {
+                if (!writeReady()) return;
+            } catch (IOException e) {
+                Arrays.fill(writeBatch, null);
+                Arrays.fill(writeBuffers, null);
+                requests.abortWrite();
+                // Подключение закрыл цикл событий, пока worker писал
+                if (key.isValid()) throw new RuntimeException(e);
+                return;
+            }
+            requests.awaitWritable();
+            updateInterestOps();
+        }
+
+        /**
+         * Подключение простаивает, если по нему давно ничего не приходило и ему ничего не нужно отправить
+         */
+        private boolean isIdle(long now) {
+            return now - lastActivityNs > TimeUnit.MILLISECONDS.toNanos(ServerLifecycle.IDLE_TIMEOUT_MS)
+                    && requests.isEmpty();
+        }
+
         private void handleRead() throws IOException {
+            lastActivityNs = System.nanoTime();
+            nReads++;
             if (channel.read(buffer) == -1) {
-                close();
+                // Ответы на уже прочитанные запросы ещё отправляются, закроет тогда писавший последний
+                inputClosed = true;
+                if (requests.isEmpty()) {
+                    close();
+                } else {
+                    updateInterestOps();
+                }
             } else if (buffer.remaining() == 0) {
                 nextOp.run();
             }
         }
 
+        /**
+         * OP_WRITE выставлен, только пока записью владеет цикл событий
+         */
         private void handleWrite() throws IOException {
-            channel.write(buffer);
-            if (buffer.remaining() == 0)
-                nextOp.run();
+            writeReady();
+        }
+
+        /**
+         * Готовые по порядку ответы отправляются gathering-записями, пока сокет их принимает.
+         * Вызывает только владелец записи
+         *
+         * @return владеет ли вызвавший записью и дальше: не всё поместилось в буфер сокета
+         */
+        private boolean writeReady() throws IOException {
+            while (true) {
+                int n = requests.ready(writeBatch);
+                if (n == 0) return false;
+                for (int i = 0; i < n; i++)
+                    writeBuffers[i] = writeBatch[i].buffer;
+                channel.write(writeBuffers, 0, n);
+                int sent = 0;
+                while (sent < n && writeBuffers[sent].remaining() == 0) sent++;
+                // Не держим ссылок на буферы, которые вернутся в пул. Убираем их до onWrite:
+                // после последнего ответа владельцем записи может стать worker, и массивы перейдут к нему
+                Arrays.fill(writeBuffers, 0, n, null);
+                Arrays.fill(writeBatch, sent, n, null);
+                for (int i = 0; i < sent; i++) {
+                    Request request = writeBatch[i];
+                    writeBatch[i] = null;
+                    // Владение отпускает только последний ответ: остальные из пачки уже обработаны
+                    if (!onWrite(request)) return false;
+                }
+                if (sent < n) return true;
+            }
         }
     }
 }
@@ -0,0 +1,58 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Необязательные параметры запуска вида {@code --имя=значение} (или просто {@code --имя} для флагов).
+ * Хранятся глобально, т.к. нужны в разных частях сервера и клиента.
+ * Если параметр не передан в аргументах, используется системное свойство с тем же именем.
+ */
+public class Options {
+    private static final Map<String, String> values = new ConcurrentHashMap<>();
+
+    /**
+     * Запомнить все параметры вида {@code --имя=значение}
+     *
+     * @return оставшиеся позиционные аргументы
+     */
+    public static String[] parse(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq == -1) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String value = values.get(name);
+        if (value == null) value = System.getProperty(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
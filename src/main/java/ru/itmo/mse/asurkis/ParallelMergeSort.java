@@ -0,0 +1,73 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Сортировка слиянием, в которой половины сортируются параллельно через fork/join
+ */
+final class ParallelMergeSort {
+    /**
+     * Куски меньше этого размера сортируются последовательно
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 1 << 13;
+
+    private ParallelMergeSort() {
+    }
+
+    static void sort(int[] arr, int from, int to) {
+        if (to - from <= SEQUENTIAL_THRESHOLD) {
+            Arrays.sort(arr, from, to);
+            return;
+        }
+        int[] buf = new int[to - from];
+        ForkJoinPool.commonPool().invoke(new SortTask(arr, buf, from, to, from));
+    }
+
+    private static class SortTask extends RecursiveAction {
+        @java.io.Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int[] arr;
+        private final int[] buf;
+        private final int from;
+        private final int to;
+        /**
+         * Смещение, на которое {@code buf} сдвинут относительно {@code arr}
+         */
+        private final int bufOffset;
+
+        private SortTask(int[] arr, int[] buf, int from, int to, int bufOffset) {
+            this.arr = arr;
+            this.buf = buf;
+            this.from = from;
+            this.to = to;
+            this.bufOffset = bufOffset;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                Arrays.sort(arr, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(
+                    new SortTask(arr, buf, from, mid, bufOffset),
+                    new SortTask(arr, buf, mid, to, bufOffset));
+
+            // Половины уже упорядочены относительно друг друга
+            if (arr[mid - 1] <= arr[mid]) return;
+
+            System.arraycopy(arr, from, buf, from - bufOffset, to - from);
+            int i = from - bufOffset, iEnd = mid - bufOffset;
+            int j = iEnd, jEnd = to - bufOffset;
+            int k = from;
+            while (i < iEnd && j < jEnd)
+                arr[k++] = buf[i] <= buf[j] ? buf[i++] : buf[j++];
+            while (i < iEnd) arr[k++] = buf[i++];
+            while (j < jEnd) arr[k++] = buf[j++];
+        }
+    }
+}
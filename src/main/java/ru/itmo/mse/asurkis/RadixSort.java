@@ -0,0 +1,72 @@
+package ru.itmo.mse.asurkis;
+
+/**
+ * Поразрядная сортировка int32 от младшего байта к старшему.
+ * Знаковость учитывается инвертированием старшего бита в последнем проходе,
+ * поэтому отрицательные числа оказываются перед положительными.
+ */
+final class RadixSort {
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int MASK = RADIX - 1;
+    private static final int PASSES = Integer.SIZE / RADIX_BITS;
+
+    /**
+     * Вспомогательный массив переиспользуется между запросами одного worker'а
+     */
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[0]);
+
+    private RadixSort() {
+    }
+
+    static void sort(int[] arr, int from, int to) {
+        int length = to - from;
+        if (length < 2) return;
+
+        int[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new int[length];
+            SCRATCH.set(scratch);
+        }
+
+        // Гистограммы всех разрядов считаем за один проход
+        int[][] counts = new int[PASSES][RADIX];
+        for (int i = from; i < to; i++) {
+            int key = arr[i] ^ Integer.MIN_VALUE;
+            for (int pass = 0; pass < PASSES; pass++)
+                counts[pass][(key >>> (pass * RADIX_BITS)) & MASK]++;
+        }
+
+        int[] src = arr;
+        int srcFrom = from;
+        int[] dst = scratch;
+        int dstFrom = 0;
+        for (int pass = 0; pass < PASSES; pass++) {
+            int[] count = counts[pass];
+            int shift = pass * RADIX_BITS;
+
+            // Если во всех числах разряд одинаковый, проход ничего не меняет
+            if (count[((src[srcFrom] ^ Integer.MIN_VALUE) >>> shift) & MASK] == length) continue;
+
+            int offset = dstFrom;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int c = count[digit];
+                count[digit] = offset;
+                offset += c;
+            }
+            for (int i = srcFrom; i < srcFrom + length; i++) {
+                int x = src[i];
+                dst[count[((x ^ Integer.MIN_VALUE) >>> shift) & MASK]++] = x;
+            }
+
+            int[] t = src;
+            src = dst;
+            dst = t;
+            int tFrom = srcFrom;
+            srcFrom = dstFrom;
+            dstFrom = tFrom;
+        }
+
+        if (src != arr) System.arraycopy(src, srcFrom, arr, from, length);
+    }
+}
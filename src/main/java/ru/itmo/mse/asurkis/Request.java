@@ -0,0 +1,21 @@
+package ru.itmo.mse.asurkis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Прочитанный запрос, ответ на который ещё не отправлен.
+ * Пока запрос обрабатывается, в {@link #buffer} лежит тело запроса, затем — ответ вместе с размером.
+ */
+class Request {
+    ByteBuffer buffer;
+    final Metrics metrics = new Metrics();
+
+    /**
+     * Ответ готов к отправке, меняется под блокировкой {@link RequestQueue}
+     */
+    boolean processed = false;
+
+    Request(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+}
@@ -0,0 +1,219 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Запросы одного подключения, которые уже прочитаны, но ответ на них ещё не отправлен.
+ * Запросы обрабатываются параллельно, а ответы отправляются строго в порядке запросов:
+ * отправлять можно только ответ на самый старый запрос.
+ * <p>
+ * Чтение новых запросов приостанавливается, когда их накопилось {@code maxInFlight}
+ * или пока какой-то из них отложен переполненным пулом worker'ов (см. {@link #park()}).
+ * Возобновивший чтение отвечает за то, чтобы оно продолжилось.
+ * <p>
+ * Отправляет ответы один владелец записи: его назначает {@link #complete(Request)},
+ * и только он вызывает {@link #ready(Request[])} и {@link #poll()}, пока {@code poll} не вернёт {@code null}.
+ * <p>
+ * После {@link #close()} буферы запросов возвращаются в {@link BufferPool#SHARED}: готовых — сразу
+ * или владельцем записи, когда он закончит, обрабатываемых — при {@link #complete(Request)}.
+ */
+class RequestQueue {
+    private final ArrayDeque<Request> requests = new ArrayDeque<>();
+    private final int maxInFlight;
+
+    private boolean writing = false;
+    // Владелец записи передал её циклу событий, тот продолжит по готовности сокета к записи
+    private boolean awaitingWritable = false;
+    private boolean readingPaused = false;
+    private boolean closed = false;
+    // Сколько запросов ждут места в очереди пула worker'ов
+    private int parked = 0;
+
+    RequestQueue(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Добавить прочитанный запрос
+     *
+     * @return можно ли читать следующий запрос; если нет, чтение возобновится после {@link #resumeReading()}
+     */
+    synchronized boolean add(Request request) {
+        requests.add(request);
+        readingPaused = requests.size() >= maxInFlight;
+        return !readingPaused;
+    }
+
+    /**
+     * Отметить, что ответ на запрос готов
+     *
+     * @return запрос, ответ на который нужно начать отправлять, или {@code null}, если отправлять пока нечего
+     * либо отправка уже идёт. Получивший запрос становится владельцем записи
+     */
+    synchronized Request complete(Request request) {
+        if (closed) {
+            // Ответ отправлять уже некуда
+            requests.remove(request);
+            release(request);
+            return null;
+        }
+        request.processed = true;
+        if (!writing && requests.peek() == request) {
+            writing = true;
+            request.metrics.writeReady = StageTracer.now();
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Готовые ответы подряд с начала очереди, начиная с отправляемого. Их можно отправить одной записью.
+     * Вызывает только владелец записи
+     *
+     * @return сколько запросов положено в {@code out}
+     */
+    synchronized int ready(Request[] out) {
+        if (!writing) return 0;
+        if (closed) {
+            dropProcessed();
+            return 0;
+        }
+        int n = 0;
+        for (Request request : requests) {
+            if (n == out.length || !request.processed) break;
+            out[n++] = request;
+        }
+        return n;
+    }
+
+    /**
+     * Отметить, что текущий ответ отправлен. Вызывает только владелец записи
+     *
+     * @return следующий готовый ответ, который нужно отправить, или {@code null}:
+     * тогда вызвавший больше не владеет записью и писать не должен
+     */
+    synchronized Request poll() {
+        requests.poll();
+        if (closed) {
+            dropProcessed();
+            return null;
+        }
+        Request head = requests.peek();
+        if (head != null && head.processed) {
+            head.metrics.writeReady = StageTracer.now();
+            return head;
+        }
+        writing = false;
+        awaitingWritable = false;
+        return null;
+    }
+
+    /**
+     * Владелец записи не смог отправить всё сразу и передаёт запись циклу событий
+     */
+    synchronized void awaitWritable() {
+        assert writing;
+        if (closed) {
+            dropProcessed();
+            return;
+        }
+        awaitingWritable = true;
+    }
+
+    /**
+     * Запись владельца не удалась, например канал закрыт. Если подключение уже закрыто,
+     * владелец возвращает буферы неотправленных ответов, иначе это сделает {@link #close()}
+     */
+    synchronized void abortWrite() {
+        writing = false;
+        awaitingWritable = false;
+        if (closed) dropProcessed();
+    }
+
+    /**
+     * Подключение закрыто. Если запись идёт, готовые ответы вернёт её владелец: он может ещё писать их буферы.
+     * Запись, ждущую готовности сокета, ведёт цикл событий, а он сам и закрывает подключение
+     */
+    synchronized void close() {
+        closed = true;
+        if (!writing || awaitingWritable) dropProcessed();
+    }
+
+    /**
+     * Вернуть в пул буферы готовых ответов и закончить запись
+     */
+    private void dropProcessed() {
+        writing = false;
+        awaitingWritable = false;
+        for (Iterator<Request> iter = requests.iterator(); iter.hasNext(); ) {
+            Request request = iter.next();
+            if (!request.processed) continue;
+            release(request);
+            iter.remove();
+        }
+    }
+
+    private static void release(Request request) {
+        BufferPool.SHARED.release(request.buffer);
+        request.buffer = null;
+    }
+
+    /**
+     * @return нужно ли возобновить приостановленное чтение
+     */
+    synchronized boolean resumeReading() {
+        if (!closed && readingPaused && parked == 0 && requests.size() < maxInFlight) {
+            readingPaused = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Пул worker'ов отложил запрос подключения. Чтение остановит сам читающий в {@link #continueReading()}:
+     * отсюда его остановить нельзя, чтение может идти в другом потоке.
+     * <p>
+     * Пачку, закрытую по окну, {@link BatchingExecutor} передаёт пулу из потока таймера, уже после того, как
+     * читающий вызвал {@code continueReading()} для её запросов. Тогда подключение прочитает ещё один запрос
+     * сверх отложенного и остановится на следующем {@code continueReading()}
+     */
+    synchronized void park() {
+        parked++;
+    }
+
+    /**
+     * Отложенный запрос попал в очередь пула
+     *
+     * @return нужно ли возобновить приостановленное чтение
+     */
+    synchronized boolean unpark() {
+        parked--;
+        return resumeReading();
+    }
+
+    /**
+     * Вызывается читающим после передачи запроса пулу, если {@link #add(Request)} разрешил читать дальше
+     *
+     * @return можно ли читать следующий запрос; если нет, чтение возобновит {@link #unpark()}
+     */
+    synchronized boolean continueReading() {
+        readingPaused = parked > 0;
+        return !readingPaused;
+    }
+
+    synchronized boolean isEmpty() {
+        return requests.isEmpty();
+    }
+
+    synchronized boolean isReadingPaused() {
+        return readingPaused;
+    }
+
+    /**
+     * @return владеет ли записью цикл событий, то есть нужно ли ждать готовности сокета к записи
+     */
+    synchronized boolean isAwaitingWritable() {
+        return awaitingWritable;
+    }
+}
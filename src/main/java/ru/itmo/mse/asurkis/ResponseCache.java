@@ -0,0 +1,135 @@
+package ru.itmo.mse.asurkis;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш готовых ответов по содержимому запроса, включается {@code --cache-bytes}.
+ * Ключ — 64-битный хэш байтов запроса, при совпадении хэша запрос сверяется побайтово.
+ * <p>
+ * Чтобы worker'ы не ждали друг друга, кэш разбит на сегменты со своей блокировкой,
+ * в каждом — LRU с ограничением на суммарный размер запросов и ответов.
+ */
+public class ResponseCache {
+    /**
+     * {@code null}, если кэш выключен
+     */
+    public static final ResponseCache SHARED = create(Options.getLong("cache-bytes", 0));
+
+    private static final int N_SEGMENTS = 16;
+    /**
+     * Примерные накладные расходы на запись: объекты, заголовки массивов, узел LinkedHashMap
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Segment[] segments = new Segment[N_SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+
+    private static ResponseCache create(long maxBytes) {
+        return maxBytes > 0 ? new ResponseCache(maxBytes) : null;
+    }
+
+    public ResponseCache(long maxBytes) {
+        for (int i = 0; i < N_SEGMENTS; i++)
+            segments[i] = new Segment(maxBytes / N_SEGMENTS);
+    }
+
+    /**
+     * Хэш байтов от {@code position} до {@code limit}, позиция не меняется
+     */
+    public static long hash(ByteBuffer buf) {
+        final long multiplier = 0x9E3779B97F4A7C15L;
+        long h = multiplier ^ buf.remaining();
+        int i = buf.position();
+        int end = buf.limit();
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            h = (h ^ buf.getLong(i)) * multiplier;
+            h ^= h >>> 29;
+        }
+        for (; i < end; i++)
+            h = (h ^ buf.get(i)) * multiplier;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @param request запрос от {@code position} до {@code limit}
+     * @return сериализованный ответ без размера или {@code null}
+     */
+    public byte[] get(long hash, ByteBuffer request) {
+        Entry entry = segment(hash).get(hash);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!ByteBuffer.wrap(entry.request).equals(request)) {
+            collisions.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    public void put(long hash, byte[] request, byte[] response) {
+        segment(hash).put(hash, new Entry(request, response));
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) (hash >>> 60) & (N_SEGMENTS - 1)];
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.currentBytes();
+        return String.format("response cache: hits=%d, misses=%d, collisions=%d, hit rate=%.3f, size=%d bytes",
+                h, m, collisions.sum(), h + m == 0 ? 0.0 : (double) h / (h + m), bytes);
+    }
+
+    private record Entry(byte[] request, byte[] response) {
+        long sizeBytes() {
+            return request.length + response.length + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    private static class Segment {
+        private final long maxBytes;
+        private long bytes = 0;
+        // accessOrder = true: итерация от давно использованных к недавним
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private synchronized Entry get(long hash) {
+            return entries.get(hash);
+        }
+
+        private synchronized void put(long hash, Entry entry) {
+            if (entry.sizeBytes() > maxBytes) return;
+            Entry old = entries.put(hash, entry);
+            if (old != null) bytes -= old.sizeBytes();
+            bytes += entry.sizeBytes();
+
+            Iterator<Map.Entry<Long, Entry>> iter = entries.entrySet().iterator();
+            while (bytes > maxBytes && iter.hasNext()) {
+                bytes -= iter.next().getValue().sizeBytes();
+                iter.remove();
+            }
+        }
+
+        private synchronized long currentBytes() {
+            return bytes;
+        }
+    }
+}
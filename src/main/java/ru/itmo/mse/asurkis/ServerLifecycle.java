@@ -0,0 +1,130 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Общее для всех архитектур управление временем жизни сервера.
+ * <p>
+ * Для экспериментов сервер принимает {@code nClients} подключений и завершается после их обработки.
+ * При {@code nClients == 0} сервер работает, пока не получит сигнал (SIGINT/SIGTERM):
+ * тогда он перестаёт принимать подключения, дожидается обработки уже полученных запросов
+ * (не дольше {@code --drain-timeout-ms}) и печатает итоговые метрики.
+ * <p>
+ * Подключения, по которым {@code --idle-timeout-ms} не было запросов, закрываются.
+ * <p>
+ * Подключения могут приниматься несколькими потоками ({@code --acceptors}), поэтому принятые считаются вместе.
+ */
+public class ServerLifecycle {
+    /**
+     * 0 — не закрывать простаивающие подключения
+     */
+    public static final long IDLE_TIMEOUT_MS = Options.getLong("idle-timeout-ms", 0);
+    private static final long DRAIN_TIMEOUT_MS = Options.getLong("drain-timeout-ms", 10_000);
+
+    private int nClients;
+    private final AtomicInteger remainingClients = new AtomicInteger();
+    private final AtomicInteger acceptedClients = new AtomicInteger();
+    private Closeable listener;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean persistent = false;
+    private volatile boolean stopping = false;
+
+    /**
+     * Вызывается сервером перед приёмом подключений
+     *
+     * @param listener слушающие сокеты, закрываются по сигналу или после приёма последнего клиента,
+     *                 чтобы прервать приём подключений
+     * @param workerPool пул, в котором по сигналу нужно дождаться обработки запросов
+     */
+    public void start(int nClients, Closeable listener, ExecutorService workerPool) {
+        this.nClients = nClients;
+        persistent = nClients == 0;
+        remainingClients.set(nClients);
+        this.listener = listener;
+        MetricsRecorder.start();
+        LiveMetrics.start(workerPool);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(listener, workerPool), "drain"));
+    }
+
+    /**
+     * Принимать ли ещё подключения
+     */
+    public boolean shouldAccept() {
+        return !stopping && (persistent || acceptedClients.get() < nClients);
+    }
+
+    /**
+     * Нужно ли продолжать обслуживать подключения.
+     * Бессрочный сервер обслуживает их и во время завершения, чтобы отправить оставшиеся ответы
+     */
+    public boolean isRunning() {
+        return persistent || remainingClients.get() > 0;
+    }
+
+    /**
+     * @return номер подключения
+     */
+    public int clientAccepted() {
+        LiveMetrics.connectionOpened();
+        int connectionId = acceptedClients.getAndIncrement();
+        // Остальные принимающие потоки ждут в accept, закрытие сокетов их освобождает
+        if (!persistent && connectionId == nClients - 1) closeListener();
+        return connectionId;
+    }
+
+    /**
+     * @return было ли это последнее из ожидаемых подключений, т.е. нужно ли завершать сервер
+     */
+    public boolean clientClosed() {
+        LiveMetrics.connectionClosed();
+        return remainingClients.decrementAndGet() == 0 && !persistent;
+    }
+
+    public void requestReceived() {
+        inFlight.incrementAndGet();
+        LiveMetrics.requestReceived();
+    }
+
+    public void responseSent(Metrics metrics) {
+        LiveMetrics.responseSent(metrics);
+        MetricsRecorder.record(metrics);
+        inFlight.decrementAndGet();
+    }
+
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    private void closeListener() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Сокет уже мог быть закрыт после приёма всех подключений
+        }
+    }
+
+    private void drain(Closeable listener, ExecutorService workerPool) {
+        stopping = true;
+        closeListener();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+        // Увидев stopping, подключения перестают читать запросы. Уже читаемые могут успеть дойти до пула
+        // после shutdown, их отклоняет ServerUtil.execute
+        workerPool.shutdown();
+        try {
+            workerPool.awaitTermination(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // Обработанные ответы ещё нужно отправить
+            while (inFlight.get() > 0 && System.nanoTime() < deadline)
+                Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (inFlight.get() > 0)
+            System.err.println("shutting down with " + inFlight.get() + " requests in flight");
+        MetricsRecorder.finish();
+    }
+}
@@ -1,10 +1,20 @@
 package ru.itmo.mse.asurkis;
 
-import com.google.protobuf.CodedOutputStream;
 import ru.itmo.mse.asurkis.Messages.ArrayMessage;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Общий код, не зависящий от реализации сервера
@@ -12,6 +22,139 @@ import java.nio.ByteBuffer;
 public class ServerUtil {
     public static final int START_CAPACITY_BYTES = 1024;
 
+    /**
+     * Сколько запросов одного подключения может одновременно ждать ответа,
+     * прежде чем сервер перестанет читать следующие
+     */
+    public static final int MAX_IN_FLIGHT = Options.getInt("max-in-flight", 16);
+
+    private static final SortStrategy SORT_STRATEGY = SortStrategy.byName(Options.getString("sort", "auto"));
+
+    /**
+     * Вид пула worker'ов: {@code fixed} — общая очередь {@link Executors#newFixedThreadPool},
+     * {@code fork-join} — {@link ForkJoinPool} с очередью на каждого worker'а и кражей задач
+     */
+    public static final String WORKER_POOL = Options.getString("worker-pool", "fixed");
+
+    /**
+     * Пул worker'ов для обработки запросов, общий для всех архитектур
+     */
+    public static ExecutorService newWorkerPool(int nThreads) {
+        ExecutorService pool = switch (WORKER_POOL) {
+            case "fixed" -> BoundedWorkerPool.CAPACITY > 0
+                    ? BoundedWorkerPool.fromOptions(nThreads)
+                    : Executors.newFixedThreadPool(nThreads);
+            case "fork-join" -> newForkJoinPool(nThreads);
+            default -> throw new IllegalArgumentException("Unknown worker pool, expected fixed or fork-join");
+        };
+        return BatchingExecutor.MAX_BATCH_SIZE > 1 ? new BatchingExecutor(pool) : pool;
+    }
+
+    /**
+     * Передать запрос пулу worker'ов. По сигналу завершения пул закрывается, пока подключения ещё читают:
+     * запросы, пришедшие после этого, отклоняются, и клиент получает кадр ошибки
+     */
+    public static void execute(ExecutorService workerPool, WorkerTask task) {
+        try {
+            workerPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject();
+        }
+    }
+
+    /**
+     * Задачи извне {@link ForkJoinPool} кладёт в очередь, выбранную по отправляющему потоку,
+     * поэтому каждый цикл событий в основном попадает в свою очередь и не спорит за общую.
+     * Свободные worker'ы крадут задачи из чужих очередей. {@code asyncMode} — задачи без вложенных
+     * подзадач, из своей очереди берём в порядке поступления
+     */
+    private static ExecutorService newForkJoinPool(int nThreads) {
+        if (BoundedWorkerPool.CAPACITY > 0)
+            throw new IllegalArgumentException("--queue-capacity is supported only with the fixed worker pool");
+        return new ForkJoinPool(nThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Сколько слушающих сокетов открыть на одном порту. Каждый принимает подключения в своём потоке,
+     * а ядро само распределяет между сокетами входящие подключения
+     */
+    public static final int ACCEPTORS = Options.getInt("acceptors", 1);
+    /**
+     * {@code SO_REUSEPORT}: нужен для нескольких сокетов на одном порту, в том числе в разных процессах сервера
+     */
+    private static final boolean REUSE_PORT = Options.getBoolean("reuse-port", ACCEPTORS > 1);
+
+    /**
+     * Привязать слушающий канал к порту, с {@code SO_REUSEPORT}, если он нужен
+     */
+    public static <T extends NetworkChannel> T bindListener(T channel, int port) throws IOException {
+        // Без поддержки в ОС (не Linux и не BSD) setOption бросит UnsupportedOperationException
+        if (REUSE_PORT) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    public static ServerSocket bindListener(ServerSocket socket, int port) throws IOException {
+        if (REUSE_PORT) socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        socket.bind(new InetSocketAddress(port));
+        return socket;
+    }
+
+    /**
+     * Закрыть все слушающие сокеты разом: для {@link ServerLifecycle} это один слушающий сокет
+     */
+    public static Closeable closeAll(List<? extends Closeable> listeners) {
+        return () -> {
+            IOException failure = null;
+            for (Closeable listener : listeners) {
+                try {
+                    listener.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        };
+    }
+
+    public interface AcceptLoop<T> {
+        void run(T listener, int shard) throws IOException;
+    }
+
+    /**
+     * Принимать подключения на каждом слушающем сокете в своём потоке. Первый сокет обслуживает
+     * вызывающий поток, метод возвращается, когда его цикл закончится
+     */
+    public static <T> void runAcceptors(List<T> listeners, AcceptLoop<T> loop) throws IOException {
+        for (int shard = 1; shard < listeners.size(); shard++) {
+            T listener = listeners.get(shard);
+            int index = shard;
+            new Thread(() -> {
+                try {
+                    loop.run(listener, index);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "acceptor-" + shard).start();
+        }
+        loop.run(listeners.get(0), 0);
+    }
+
+    /**
+     * Размер кадра, которым сервер сообщает, что запрос отклонён из-за перегрузки. Тела у такого кадра нет
+     */
+    public static final int OVERLOADED_FRAME_SIZE = -1;
+
+    /**
+     * Записать в буфер вместо ответа кадр ошибки перегрузки
+     */
+    public static ByteBuffer overloadedResponse(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.putInt(OVERLOADED_FRAME_SIZE);
+        buffer.flip();
+        return buffer;
+    }
+
     public static int findCapacity(int currCapacity, int requiredSize) {
         while (currCapacity < requiredSize) currCapacity *= 2;
         return currCapacity;
@@ -28,21 +171,76 @@ public class ServerUtil {
         return buf;
     }
 
+    /**
+     * Обработать запрос, записанный в буфер до {@code position}, и положить туда же ответ вместе с размером.
+     * Числа разбираются напрямую из буфера в переиспользуемый массив, без создания {@link ArrayMessage}.
+     * Direct-буфер, если он мал для ответа, заменяется буфером из {@link BufferPool#SHARED}.
+     */
     public static ByteBuffer processPayload(ByteBuffer buffer) throws IOException {
+        return processPayload(buffer, null);
+    }
+
+    /**
+     * То же, с отметкой этапов разбора и сортировки в {@code metrics} для {@link StageTracer}
+     */
+    public static ByteBuffer processPayload(ByteBuffer buffer, Metrics metrics) throws IOException {
+        return processPayload(buffer, WireFormat.PROTOBUF, metrics);
+    }
+
+    /**
+     * То же для запроса в формате {@code format}, ответ в том же формате
+     */
+    static ByteBuffer processPayload(ByteBuffer buffer, WireFormat format, Metrics metrics) throws IOException {
         buffer.flip();
-        ArrayMessage payload = ArrayMessage.parseFrom(buffer);
-        payload = ServerUtil.processPayload(payload);
 
-        buffer = ensureLimit(buffer, 4 + payload.getSerializedSize());
-        buffer.putInt(payload.getSerializedSize());
-        CodedOutputStream cos = CodedOutputStream.newInstance(buffer);
-        payload.writeTo(cos);
-        cos.flush();
+        ResponseCache cache = ResponseCache.SHARED;
+        long hash = 0;
+        byte[] requestBytes = null;
+        if (cache != null) {
+            // Одинаковые байты в разных форматах — разные запросы с разными ответами
+            hash = ResponseCache.hash(buffer) ^ format.ordinal() * 0x9E3779B97F4A7C15L;
+            byte[] cached = cache.get(hash, buffer);
+            if (cached != null) {
+                buffer = ensureResponseLimit(buffer, 4 + cached.length);
+                buffer.putInt(cached.length);
+                buffer.put(cached);
+                buffer.flip();
+                if (metrics != null) metrics.responseBytes = buffer.remaining();
+                return buffer;
+            }
+            // Ответ запишется поверх запроса, а запрос нужен для сверки при следующих обращениях
+            requestBytes = new byte[buffer.remaining()];
+            buffer.get(buffer.position(), requestBytes);
+        }
+
+        ArrayCodec codec = ArrayCodec.get();
+        int count = format.decodeRequest(codec, buffer);
+        if (metrics != null) metrics.decoded = StageTracer.now();
+        sortInPlace(codec.values(), 0, count);
+        if (metrics != null) metrics.sorted = StageTracer.now();
+
+        int size = format.responseSize(codec, count);
+        buffer = ensureResponseLimit(buffer, 4 + size);
+        buffer.putInt(size);
+        format.encodeResponse(codec, buffer, count);
+
+        if (cache != null) {
+            byte[] responseBytes = new byte[size];
+            buffer.get(4, responseBytes);
+            cache.put(hash, requestBytes, responseBytes);
+        }
 
         buffer.flip();
+        if (metrics != null) metrics.responseBytes = buffer.remaining();
         return buffer;
     }
 
+    private static ByteBuffer ensureResponseLimit(ByteBuffer buffer, int limit) throws IOException {
+        return buffer.isDirect()
+                ? BufferPool.SHARED.ensureLimit(buffer, limit)
+                : ensureLimit(buffer, limit);
+    }
+
     /**
      * Распаковать массив, прочитать и упаковать.
      * Все эти операции происходят в памяти, без ввода-вывода,
@@ -61,25 +259,13 @@ public class ServerUtil {
     }
 
     /**
-     * Отсортировать массив, который пришёл по сети, за квадратичное время
+     * Отсортировать массив, который пришёл по сети, выбранной в {@code --sort} стратегией
      */
     public static void sortInPlace(int[] arr) {
-        for (int i = 0; i < arr.length; i++) {
-            for (int j = i + 1; j < arr.length; j++) {
-                if (arr[i] > arr[j]) {
-                    int t = arr[i];
-                    arr[i] = arr[j];
-                    arr[j] = t;
-                }
-            }
-        }
+        SORT_STRATEGY.sort(arr);
     }
 
-    public static void printMetrics(Metrics metrics) {
-        synchronized (System.out) {
-            System.out.printf("%d,%d\n",
-                    metrics.processingFinish - metrics.processingStart,
-                    metrics.responseSent - metrics.requestReceived);
-        }
+    public static void sortInPlace(int[] arr, int from, int to) {
+        SORT_STRATEGY.sort(arr, from, to);
     }
 }
@@ -0,0 +1,129 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Алгоритм сортировки, которым сервер обрабатывает запросы.
+ * Выбирается параметром {@code --sort=<имя>}, по умолчанию {@code auto}.
+ */
+public enum SortStrategy {
+    /**
+     * Исходная квадратичная сортировка обменами, оставлена для сравнения со старыми замерами
+     */
+    QUADRATIC {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            for (int i = from; i < to; i++) {
+                for (int j = i + 1; j < to; j++) {
+                    if (arr[i] > arr[j]) {
+                        int t = arr[i];
+                        arr[i] = arr[j];
+                        arr[j] = t;
+                    }
+                }
+            }
+        }
+    },
+
+    /**
+     * Быстрая сортировка с двумя опорными элементами из JDK.
+     * Как и интроспективная сортировка, при плохом разбиении переходит на пирамидальную,
+     * так что худший случай — {@code O(n log n)}
+     */
+    INTRO {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            Arrays.sort(arr, from, to);
+        }
+    },
+
+    /**
+     * Поразрядная LSD-сортировка по байтам, {@code O(n)}, но требует дополнительный массив
+     */
+    RADIX {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            RadixSort.sort(arr, from, to);
+        }
+    },
+
+    /**
+     * Параллельная сортировка слиянием на {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     */
+    PARALLEL {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            ParallelMergeSort.sort(arr, from, to);
+        }
+    },
+
+    /**
+     * Сортировка битонными сетями и векторным слиянием на SIMD, см. {@link VectorSort}.
+     * Без {@code --add-modules jdk.incubator.vector} или без широких векторов — {@link #INTRO}
+     */
+    VECTOR {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            if (VECTOR_AVAILABLE) {
+                VectorSort.sort(arr, from, to);
+            } else {
+                INTRO.sort(arr, from, to);
+            }
+        }
+    },
+
+    /**
+     * Выбор алгоритма по размеру массива
+     */
+    AUTO {
+        @Override
+        public void sort(int[] arr, int from, int to) {
+            int length = to - from;
+            if (length >= PARALLEL_THRESHOLD) {
+                PARALLEL.sort(arr, from, to);
+            } else if (length >= RADIX_THRESHOLD) {
+                RADIX.sort(arr, from, to);
+            } else if (VECTOR_AVAILABLE && length >= VECTOR_THRESHOLD) {
+                VECTOR.sort(arr, from, to);
+            } else {
+                INTRO.sort(arr, from, to);
+            }
+        }
+    };
+
+    /**
+     * Начиная с этого размера поразрядная сортировка обгоняет сравнения:
+     * на меньших массивах дороже обходятся проходы по таблице счётчиков
+     */
+    public static final int RADIX_THRESHOLD = Options.getInt("sort-radix-threshold", 1 << 12);
+
+    /**
+     * Начиная с этого размера выгоднее распараллелить сортировку одного массива,
+     * несмотря на то, что worker'ы сервера и так заняты другими запросами
+     */
+    public static final int PARALLEL_THRESHOLD = Options.getInt("sort-parallel-threshold", 1 << 20);
+
+    /**
+     * С какого размера {@code auto} использует векторную сортировку, если она доступна.
+     * На совсем маленьких массивах сортировка вставками в {@link #INTRO} не успевает ошибиться в ветвлениях
+     */
+    public static final int VECTOR_THRESHOLD = Options.getInt("sort-vector-threshold", 64);
+
+    /**
+     * Модуль Vector API подключается при запуске ({@code --add-modules jdk.incubator.vector}),
+     * без него классы {@link VectorSort} не загрузятся, поэтому проверяем до первого обращения
+     */
+    public static final boolean VECTOR_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && VectorSort.isUseful();
+
+    public abstract void sort(int[] arr, int from, int to);
+
+    public void sort(int[] arr) {
+        sort(arr, 0, arr.length);
+    }
+
+    public static SortStrategy byName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,70 @@
+package ru.itmo.mse.asurkis;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+
+/**
+ * Трассировка этапов запроса ({@code --trace}): чтение тела, ожидание в очереди пула, разбор, сортировка,
+ * сериализация, ожидание отправки и сама отправка.
+ * <p>
+ * Моменты этапов записываются в поля {@link Metrics} того же запроса, поэтому трассировка ничего не выделяет.
+ * Без {@code --trace} {@link #now()} возвращает 0 и не обращается к часам.
+ * Длительности этапов сводятся в гистограммы и печатаются вместе с итоговыми метриками.
+ */
+public class StageTracer {
+    public static final boolean ENABLED = Options.getBoolean("trace", false);
+
+    private enum Stage {
+        BODY_READ("stage_body_read"),
+        QUEUE_WAIT("stage_queue_wait"),
+        DECODE("stage_decode"),
+        SORT("stage_sort"),
+        ENCODE("stage_encode"),
+        WRITE_WAIT("stage_write_wait"),
+        WRITE("stage_write");
+
+        private final String metric;
+        private final Recorder recorder = new Recorder(3);
+
+        Stage(String metric) {
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * Момент этапа, если трассировка включена
+     */
+    public static long now() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void record(Metrics metrics) {
+        recordStage(Stage.BODY_READ, metrics.headerRead, metrics.requestReceived);
+        recordStage(Stage.QUEUE_WAIT, metrics.enqueued, metrics.processingStart);
+        // При попадании в кэш ответа разбора и сортировки нет
+        if (metrics.decoded != 0) {
+            recordStage(Stage.DECODE, metrics.processingStart, metrics.decoded);
+            recordStage(Stage.SORT, metrics.decoded, metrics.sorted);
+            recordStage(Stage.ENCODE, metrics.sorted, metrics.processingFinish);
+        }
+        recordStage(Stage.WRITE_WAIT, metrics.processingFinish, metrics.writeReady);
+        recordStage(Stage.WRITE, metrics.writeReady, metrics.responseSent);
+    }
+
+    private static void recordStage(Stage stage, long from, long to) {
+        if (from != 0 && to != 0)
+            stage.recorder.recordValue(Math.max(0, to - from));
+    }
+
+    /**
+     * Напечатать сводку по каждому этапу в формате {@link MetricsRecorder#SUMMARY_HEADER}
+     */
+    static void printTotals(PrintStream out, long elapsedNs) {
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = stage.recorder.getIntervalHistogram();
+            MetricsRecorder.printSummary(out, "total", stage.metric, histogram, elapsedNs);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package ru.itmo.mse.asurkis;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сортировка очень большого массива без буферизации всего сообщения.
+ * <p>
+ * Числа разбираются из потока по мере поступления байтов и собираются в серии по {@code --stream-run-length} чисел.
+ * Заполненная серия сортируется и сбрасывается во временный файл через отображение в память.
+ * Ответ пишется в поток слиянием серий, без сборки отсортированного массива целиком.
+ * Размер ответа известен заранее: это перестановка тех же чисел, поэтому он считается при разборе.
+ * <p>
+ * В памяти одновременно лежат только одна серия и буфер чтения, сколько бы ни весил запрос.
+ * Используется блокирующими серверами для запросов больше {@code --stream-threshold-bytes}.
+ */
+class StreamingSort implements Closeable {
+    /**
+     * 0 — потоковая сортировка выключена
+     */
+    static final int THRESHOLD_BYTES = Options.getInt("stream-threshold-bytes", 0);
+    private static final int RUN_LENGTH = Options.getInt("stream-run-length", 1 << 20);
+    private static final Path SPILL_DIR = Path.of(Options.getString("stream-spill-dir", System.getProperty("java.io.tmpdir")));
+
+    private static final int CHUNK_BYTES = 1 << 16;
+    /**
+     * Тег и число целиком: varint тега и до 10 байт значения
+     */
+    private static final int MAX_FIELD_BYTES = 15;
+
+    static boolean isEnabledFor(int size) {
+        return THRESHOLD_BYTES > 0 && size > THRESHOLD_BYTES;
+    }
+
+    // Буфер чтения, после разбора — записи ответа
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES).limit(0);
+    private InputStream in;
+    private long unread;
+
+    private int[] run = new int[RUN_LENGTH];
+    private int runSize = 0;
+    private long encodedSize = 0;
+
+    private Path spillPath = null;
+    private FileChannel spill = null;
+    private final List<IntBuffer> spilledRuns = new ArrayList<>();
+    private long spilledCount = 0;
+
+    /**
+     * Прочитать из потока сообщение длины {@code size} и разложить числа по отсортированным сериям
+     */
+    void read(InputStream in, int size) throws IOException {
+        this.in = in;
+        unread = size;
+        try {
+            while (messageRemaining() > 0) {
+                ensure(MAX_FIELD_BYTES);
+                int tag = (int) ArrayCodec.readVarint(chunk);
+                if (tag == ArrayCodec.TAG_X) {
+                    add((int) ArrayCodec.readVarint(chunk));
+                } else if (tag == ArrayCodec.TAG_X_PACKED) {
+                    long length = ArrayCodec.readVarint(chunk);
+                    if (length < 0 || length > messageRemaining())
+                        throw new InvalidProtocolBufferException("Invalid length " + length);
+                    long end = messageRemaining() - length;
+                    while (messageRemaining() > end) {
+                        ensure(10);
+                        add((int) ArrayCodec.readVarint(chunk));
+                    }
+                    if (messageRemaining() != end)
+                        throw new InvalidProtocolBufferException("Packed field overruns its length");
+                } else {
+                    skipField(tag);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidProtocolBufferException("Truncated message");
+        }
+        this.in = null;
+
+        if (spilledRuns.isEmpty()) {
+            ServerUtil.sortInPlace(run, 0, runSize);
+        } else {
+            // Пока ответ ждёт отправки, серия в памяти не нужна
+            if (runSize > 0) spillRun();
+            run = null;
+        }
+    }
+
+    /**
+     * Размер тела ответа в байтах
+     */
+    int encodedSize() throws IOException {
+        // Packed-запрос может быть почти вдвое меньше ответа, где у каждого числа свой тег
+        if (encodedSize > Integer.MAX_VALUE)
+            throw new IOException("Response of " + encodedSize + " bytes does not fit into a frame");
+        return (int) encodedSize;
+    }
+
+    /**
+     * Записать тело ответа: отсортированные числа в том же виде, что и {@link ArrayCodec#encode}
+     */
+    void writeTo(OutputStream out) throws IOException {
+        chunk.clear();
+        if (spilledRuns.isEmpty()) {
+            for (int i = 0; i < runSize; i++)
+                put(out, run[i]);
+        } else {
+            merge(out);
+        }
+        out.write(chunk.array(), 0, chunk.position());
+    }
+
+    /**
+     * k-путевое слияние серий через двоичную кучу номеров серий по текущему числу
+     */
+    private void merge(OutputStream out) throws IOException {
+        int k = spilledRuns.size();
+        int[] heap = new int[k];
+        int[] heads = new int[k];
+        int heapSize = 0;
+        for (int i = 0; i < k; i++) {
+            IntBuffer source = spilledRuns.get(i).rewind();
+            heads[i] = source.get();
+            heap[heapSize] = i;
+            siftUp(heap, heads, heapSize++);
+        }
+        while (heapSize > 0) {
+            int i = heap[0];
+            put(out, heads[i]);
+            IntBuffer source = spilledRuns.get(i);
+            if (source.hasRemaining()) {
+                heads[i] = source.get();
+            } else {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heads, heapSize);
+        }
+    }
+
+    private static void siftUp(int[] heap, int[] heads, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (heads[heap[parent]] <= heads[heap[pos]]) return;
+            swap(heap, parent, pos);
+            pos = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int[] heads, int heapSize) {
+        int pos = 0;
+        while (true) {
+            int smallest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+            if (left < heapSize && heads[heap[left]] < heads[heap[smallest]]) smallest = left;
+            if (right < heapSize && heads[heap[right]] < heads[heap[smallest]]) smallest = right;
+            if (smallest == pos) return;
+            swap(heap, pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
+    private void put(OutputStream out, int value) throws IOException {
+        if (chunk.remaining() < MAX_FIELD_BYTES) {
+            out.write(chunk.array(), 0, chunk.position());
+            chunk.clear();
+        }
+        chunk.put((byte) ArrayCodec.TAG_X);
+        ArrayCodec.writeVarint(chunk, value);
+    }
+
+    private void add(int value) throws IOException {
+        run[runSize++] = value;
+        encodedSize += 1 + ArrayCodec.varintSize(value);
+        if (runSize == run.length) spillRun();
+    }
+
+    private void spillRun() throws IOException {
+        ServerUtil.sortInPlace(run, 0, runSize);
+        if (spill == null) {
+            spillPath = Files.createTempFile(SPILL_DIR, "sort-run", ".bin");
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        IntBuffer mapped = spill.map(FileChannel.MapMode.READ_WRITE, spilledCount * 4, runSize * 4L)
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        mapped.put(run, 0, runSize);
+        spilledRuns.add(mapped);
+        spilledCount += runSize;
+        runSize = 0;
+    }
+
+    private long messageRemaining() {
+        return unread + chunk.remaining();
+    }
+
+    /**
+     * Дочитать из потока, чтобы в буфере было хотя бы {@code n} байт или всё оставшееся сообщение
+     */
+    private void ensure(int n) throws IOException {
+        if (chunk.remaining() >= n || unread == 0) return;
+        chunk.compact();
+        while (chunk.position() < n && unread > 0) {
+            int nRead = in.read(chunk.array(), chunk.position(), (int) Math.min(chunk.remaining(), unread));
+            if (nRead == -1) throw new InvalidProtocolBufferException("Truncated message");
+            chunk.position(chunk.position() + nRead);
+            unread -= nRead;
+        }
+        chunk.flip();
+    }
+
+    private void skip(long n) throws IOException {
+        if (n < 0 || n > messageRemaining())
+            throw new InvalidProtocolBufferException("Invalid length " + n);
+        while (n > 0) {
+            ensure(1);
+            int step = (int) Math.min(n, chunk.remaining());
+            chunk.position(chunk.position() + step);
+            n -= step;
+        }
+    }
+
+    private void skipField(int tag) throws IOException {
+        switch (tag & 7) {
+            case ArrayCodec.WIRETYPE_VARINT -> ArrayCodec.readVarint(chunk);
+            case ArrayCodec.WIRETYPE_FIXED64 -> skip(8);
+            case ArrayCodec.WIRETYPE_LENGTH_DELIMITED -> skip(ArrayCodec.readVarint(chunk));
+            case ArrayCodec.WIRETYPE_FIXED32 -> skip(4);
+            default -> throw new InvalidProtocolBufferException("Unsupported wire type in tag " + tag);
+        }
+    }
+
+    /**
+     * Удалить временный файл серий.
+     * <p>
+     * Отображения файла JDK отпускает только при сборке мусора, поэтому после удаления ссылок на них
+     * они ещё живут. Удаление открытого и отображённого файла полагается на семантику unlink в POSIX:
+     * имя исчезает сразу, а место освобождается вместе с последним отображением
+     */
+    @Override
+    public void close() throws IOException {
+        run = null;
+        spilledRuns.clear();
+        if (spill != null) {
+            spill.close();
+            Files.deleteIfExists(spillPath);
+        }
+    }
+}
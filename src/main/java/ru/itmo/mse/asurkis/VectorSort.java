@@ -0,0 +1,183 @@
+package ru.itmo.mse.asurkis;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * Сортировка на SIMD через Vector API ({@code jdk.incubator.vector}) для массивов от сотен до тысяч чисел,
+ * на которых сортировка сравнениями в основном теряет время на неугаданных ветвлениях.
+ * <p>
+ * Массив дополняется до целого числа векторов значением {@link Integer#MAX_VALUE}, затем:
+ * <ol>
+ *     <li>каждый вектор сортируется битонной сетью: на каждом шаге элементы меняются с партнёром
+ *     перестановкой, а min и max выбираются маской, без ветвлений по данным;</li>
+ *     <li>отсортированные серии сливаются восходящей сортировкой слиянием, слияние тоже векторное:
+ *     очередной вектор сливается битонной сетью с остатком предыдущего, ветвление одно на вектор, а не на число.</li>
+ * </ol>
+ * Класс ссылается на инкубаторный модуль, поэтому загружается, только если {@link SortStrategy#VECTOR_AVAILABLE}.
+ */
+final class VectorSort {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * Перестановка к партнёру {@code lane ^ d} для {@code d = 1, 2, 4...}, индекс — {@code log2(d)}
+     */
+    private static final VectorShuffle<Integer>[] XOR_SHUFFLES;
+    /**
+     * Дорожки, которые при слиянии битонной последовательности берут max: {@code (lane & d) != 0}
+     */
+    private static final VectorMask<Integer>[] MERGE_MAX_MASKS;
+    /**
+     * Дорожки, которые на шаге {@code (k, d)} полной битонной сортировки берут max, по порядку шагов
+     */
+    private static final VectorMask<Integer>[] SORT_MAX_MASKS;
+    private static final VectorShuffle<Integer> REVERSE = VectorShuffle.fromOp(SPECIES, lane -> LANES - 1 - lane);
+
+    private static final ThreadLocal<int[][]> SCRATCH = ThreadLocal.withInitial(() -> new int[2][0]);
+
+    static {
+        int log = Integer.numberOfTrailingZeros(LANES);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        VectorShuffle<Integer>[] shuffles = new VectorShuffle[log];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        VectorMask<Integer>[] mergeMasks = new VectorMask[log];
+        for (int i = 0; i < log; i++) {
+            int d = 1 << i;
+            shuffles[i] = VectorShuffle.fromOp(SPECIES, lane -> lane ^ d);
+            mergeMasks[i] = VectorMask.fromArray(SPECIES, lanes(lane -> (lane & d) != 0), 0);
+        }
+        XOR_SHUFFLES = shuffles;
+        MERGE_MAX_MASKS = mergeMasks;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        VectorMask<Integer>[] sortMasks = new VectorMask[log * (log + 1) / 2];
+        int step = 0;
+        for (int k = 2; k <= LANES; k <<= 1) {
+            for (int d = k >> 1; d > 0; d >>= 1) {
+                int kk = k, dd = d;
+                // Блоки с (lane & k) == 0 сортируются по возрастанию, и max там берёт старший из пары,
+                // остальные — по убыванию, и max берёт младший
+                sortMasks[step++] = VectorMask.fromArray(SPECIES,
+                        lanes(lane -> ((lane & dd) != 0) == ((lane & kk) == 0)), 0);
+            }
+        }
+        SORT_MAX_MASKS = sortMasks;
+    }
+
+    private interface LanePredicate {
+        boolean test(int lane);
+    }
+
+    private static boolean[] lanes(LanePredicate predicate) {
+        boolean[] bits = new boolean[LANES];
+        for (int lane = 0; lane < LANES; lane++)
+            bits[lane] = predicate.test(lane);
+        return bits;
+    }
+
+    private VectorSort() {
+    }
+
+    /**
+     * Есть ли смысл в векторной сортировке: на узких векторах сети не окупаются
+     */
+    static boolean isUseful() {
+        return LANES >= 4;
+    }
+
+    static void sort(int[] arr, int from, int to) {
+        int length = to - from;
+        int padded = (length + LANES - 1) / LANES * LANES;
+        int[][] scratch = SCRATCH.get();
+        if (scratch[0].length < padded) {
+            scratch[0] = new int[padded];
+            scratch[1] = new int[padded];
+        }
+        int[] src = scratch[0];
+        int[] dst = scratch[1];
+
+        System.arraycopy(arr, from, src, 0, length);
+        // Дополнение окажется в конце и не отличается от настоящих MAX_VALUE, поэтому копируем обратно первые length
+        Arrays.fill(src, length, padded, Integer.MAX_VALUE);
+
+        for (int i = 0; i < padded; i += LANES)
+            sortVector(IntVector.fromArray(SPECIES, src, i)).intoArray(src, i);
+
+        for (int width = LANES; width < padded; width <<= 1) {
+            for (int lo = 0; lo < padded; lo += 2 * width) {
+                int mid = Math.min(lo + width, padded);
+                int hi = Math.min(lo + 2 * width, padded);
+                if (mid == hi) {
+                    System.arraycopy(src, lo, dst, lo, hi - lo);
+                } else {
+                    merge(src, lo, mid, hi, dst);
+                }
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        System.arraycopy(src, 0, arr, from, length);
+    }
+
+    /**
+     * Полная битонная сортировка одного вектора
+     */
+    private static IntVector sortVector(IntVector v) {
+        int step = 0;
+        for (int k = 2, logK = 1; k <= LANES; k <<= 1, logK++) {
+            for (int logD = logK - 1; logD >= 0; logD--)
+                v = compareExchange(v, XOR_SHUFFLES[logD], SORT_MAX_MASKS[step++]);
+        }
+        return v;
+    }
+
+    /**
+     * Отсортировать битонный вектор
+     */
+    private static IntVector mergeBitonic(IntVector v) {
+        for (int logD = XOR_SHUFFLES.length - 1; logD >= 0; logD--)
+            v = compareExchange(v, XOR_SHUFFLES[logD], MERGE_MAX_MASKS[logD]);
+        return v;
+    }
+
+    private static IntVector compareExchange(IntVector v, VectorShuffle<Integer> partner, VectorMask<Integer> takeMax) {
+        IntVector other = v.rearrange(partner);
+        return v.min(other).blend(v.max(other), takeMax);
+    }
+
+    /**
+     * Слить отсортированные серии {@code [lo, mid)} и {@code [mid, hi)} длиной в целое число векторов в {@code dst}
+     */
+    private static void merge(int[] src, int lo, int mid, int hi, int[] dst) {
+        int a = lo + LANES;
+        int b = mid + LANES;
+        int out = lo;
+        IntVector carry = IntVector.fromArray(SPECIES, src, lo);
+        IntVector next = IntVector.fromArray(SPECIES, src, mid);
+        while (true) {
+            // Меньшие LANES чисел двух векторов готовы, большие остаются до следующего вектора
+            IntVector reversed = next.rearrange(REVERSE);
+            mergeBitonic(carry.min(reversed)).intoArray(dst, out);
+            out += LANES;
+            carry = mergeBitonic(carry.max(reversed));
+
+            // Следующим берём вектор той серии, чьё первое число меньше: все меньшие его числа уже в carry или dst
+            if (a < mid && (b >= hi || src[a] <= src[b])) {
+                next = IntVector.fromArray(SPECIES, src, a);
+                a += LANES;
+            } else if (b < hi) {
+                next = IntVector.fromArray(SPECIES, src, b);
+                b += LANES;
+            } else {
+                break;
+            }
+        }
+        carry.intoArray(dst, out);
+    }
+}
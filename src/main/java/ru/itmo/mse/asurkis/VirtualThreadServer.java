@@ -0,0 +1,206 @@
+package ru.itmo.mse.asurkis;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Блокирующая архитектура на виртуальных потоках: по виртуальному потоку на чтение каждого подключения
+ * и на отправку каждого ответа. Сортировка остаётся на пуле из {@code nProcessors} обычных потоков,
+ * чтобы вычисления не занимали потоки-носители виртуальных.
+ */
+public class VirtualThreadServer {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        args = Options.parse(args);
+        int port = Integer.parseInt(args[0]);
+        int nClients = Integer.parseInt(args[1]);
+        new VirtualThreadServer(port).start(nClients);
+    }
+
+    private final ExecutorService workerPool;
+    private final ExecutorService virtualPool = Executors.newVirtualThreadPerTaskExecutor();
+    private final int port;
+
+    public VirtualThreadServer(int port) {
+        this.port = port;
+        Runtime runtime = Runtime.getRuntime();
+        int nProcessors = runtime.availableProcessors();
+        workerPool = ServerUtil.newWorkerPool(nProcessors);
+    }
+
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+
+    public void start(int nClients) throws IOException, InterruptedException {
+        List<ServerSocket> listeners = new ArrayList<>();
+        try {
+            for (int i = 0; i < ServerUtil.ACCEPTORS; i++)
+                listeners.add(ServerUtil.bindListener(new ServerSocket(), port));
+            lifecycle.start(nClients, ServerUtil.closeAll(listeners), workerPool);
+            ServerUtil.runAcceptors(listeners, this::acceptClients);
+        } finally {
+            ServerUtil.closeAll(listeners).close();
+        }
+
+        // Виртуальные потоки — демоны, поэтому дожидаемся их явно:
+        // сначала всех сортировок, затем отправки последних ответов
+        workerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        virtualPool.close();
+        MetricsRecorder.finish();
+    }
+
+    private void acceptClients(ServerSocket serverSocket, int shard) throws IOException {
+        while (lifecycle.shouldAccept()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Сокет закрыт по сигналу завершения или после приёма последнего клиента другим потоком
+                if (!lifecycle.shouldAccept()) break;
+                throw e;
+            }
+            long connectionId = lifecycle.clientAccepted();
+            virtualPool.submit(() -> serveClientWrap(socket, connectionId));
+        }
+    }
+
+    private void serveClientWrap(Socket socket, long connectionId) {
+        // Каждый ответ отправляется после предыдущего, поэтому порядок ответов совпадает с порядком запросов,
+        // а блокировка на запись не нужна
+        CompletableFuture<Void> previousResponse = CompletableFuture.completedFuture(null);
+        try (
+                socket;
+                InputStream inputStream = socket.getInputStream();
+                OutputStream outputStream = socket.getOutputStream();
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+                DataInputStream dis = new DataInputStream(bufferedInputStream)
+        ) {
+            if (ServerLifecycle.IDLE_TIMEOUT_MS > 0)
+                socket.setSoTimeout((int) ServerLifecycle.IDLE_TIMEOUT_MS);
+            WireFormat format = WireFormat.acceptHandshake(bufferedInputStream, outputStream);
+
+            // После сигнала завершения новые запросы не читаем: ответы на прочитанные отправятся, и подключение закроется
+            while (!lifecycle.isStopping()) {
+                Metrics metrics = new Metrics();
+                metrics.connectionId = connectionId;
+
+                int size;
+                try {
+                    size = dis.readInt();
+                    metrics.headerRead = StageTracer.now();
+                } catch (EOFException | SocketTimeoutException e) {
+                    // Клиент отключился или простаивает слишком долго
+                    break;
+                }
+
+                // Потоковая сортировка разбирает только protobuf
+                if (format == WireFormat.PROTOBUF && StreamingSort.isEnabledFor(size)) {
+                    StreamingSort sort = readStreaming(dis, size, metrics);
+                    previousResponse = previousResponse.thenRunAsync(
+                            () -> respondStreaming(sort, metrics, outputStream), virtualPool);
+                    continue;
+                }
+
+                byte[] requestBuf = new byte[size];
+                dis.readFully(requestBuf);
+
+                metrics.requestReceived = System.nanoTime();
+                metrics.payloadBytes = size;
+                lifecycle.requestReceived();
+
+                CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+                metrics.enqueued = StageTracer.now();
+                ServerUtil.execute(workerPool, new WorkerTask(
+                        () -> process(requestBuf, format, metrics, response),
+                        () -> reject(metrics, response)));
+                previousResponse = previousResponse.thenCombineAsync(response, (ignored, responseBuf) -> {
+                    respond(responseBuf, metrics, outputStream);
+                    return null;
+                }, virtualPool);
+            }
+            previousResponse.join();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (lifecycle.clientClosed())
+                workerPool.shutdown();
+        }
+    }
+
+    private void process(byte[] requestBuf, WireFormat format, Metrics metrics,
+                         CompletableFuture<ByteBuffer> response) {
+        try {
+            metrics.processingStart = System.nanoTime();
+            ByteBuffer responseBuf = ServerUtil.processPayload(
+                    ByteBuffer.wrap(requestBuf).position(requestBuf.length), format, metrics);
+            metrics.processingFinish = System.nanoTime();
+            response.complete(responseBuf);
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Пул перегружен: вместо ответа отправляем кадр ошибки
+     */
+    private static void reject(Metrics metrics, CompletableFuture<ByteBuffer> response) {
+        metrics.rejected = true;
+        response.complete(ServerUtil.overloadedResponse(ByteBuffer.allocate(4)));
+    }
+
+    /**
+     * Большой запрос сортируется сериями по мере чтения, в обход пула worker'ов.
+     * Тело читается вместе с обработкой, поэтому обработка начинается сразу после заголовка
+     */
+    private StreamingSort readStreaming(DataInputStream dis, int size, Metrics metrics) throws IOException {
+        metrics.requestReceived = metrics.processingStart = System.nanoTime();
+        metrics.payloadBytes = size;
+        lifecycle.requestReceived();
+        StreamingSort sort = new StreamingSort();
+        try {
+            sort.read(dis, size);
+        } catch (IOException e) {
+            sort.close();
+            throw e;
+        }
+        return sort;
+    }
+
+    private void respondStreaming(StreamingSort sort, Metrics metrics, OutputStream outputStream) {
+        try (sort) {
+            // Ответ пишется по частям во время слияния, поэтому здесь буферизация нужна.
+            // Поток сокета не закрываем, по нему пойдут следующие ответы
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            dos.writeInt(sort.encodedSize());
+            metrics.responseBytes = 4L + sort.encodedSize();
+            sort.writeTo(dos);
+            dos.flush();
+
+            metrics.processingFinish = metrics.responseSent = System.nanoTime();
+            lifecycle.responseSent(metrics);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void respond(ByteBuffer buf, Metrics metrics, OutputStream outputStream) {
+        try {
+            metrics.writeReady = StageTracer.now();
+            // Размер и тело уже лежат в одном массиве, буферизация не нужна
+            outputStream.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+
+            metrics.responseSent = System.nanoTime();
+            lifecycle.responseSent(metrics);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.itmo.mse.asurkis;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import ru.itmo.mse.asurkis.Messages.ArrayMessage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Формат тела кадров подключения. Кадры всегда — размер (int32 big-endian) и тело, меняется только тело:
+ * <ul>
+ *     <li>{@code protobuf} — {@code ArrayMessage}, как раньше;</li>
+ *     <li>{@code raw} — массив int32 little-endian и в запросе, и в ответе;</li>
+ *     <li>{@code delta} — запрос как в {@code raw}, ответ — разности соседних чисел в zigzag-varint.</li>
+ * </ul>
+ * Формат, отличный от protobuf, клиент предлагает первым байтом подключения {@link #handshake}, сервер подтверждает
+ * его тем же байтом. У байта установлен старший бит, а у первого байта размера настоящего кадра его нет,
+ * поэтому клиенты без рукопожатия работают по-прежнему.
+ */
+enum WireFormat {
+    PROTOBUF("protobuf", 0),
+    RAW("raw", 0x81),
+    DELTA("delta", 0x82);
+
+    static final int HANDSHAKE_FLAG = 0x80;
+
+    private final String name;
+    final int handshake;
+
+    WireFormat(String name, int handshake) {
+        this.name = name;
+        this.handshake = handshake;
+    }
+
+    static WireFormat byName(String name) {
+        for (WireFormat format : values()) {
+            if (format.name.equals(name)) return format;
+        }
+        throw new IllegalArgumentException("Unknown wire format, expected protobuf, raw or delta");
+    }
+
+    /**
+     * @param b первый байт подключения, {@code b & HANDSHAKE_FLAG != 0}
+     */
+    static WireFormat byHandshake(int b) throws IOException {
+        for (WireFormat format : values()) {
+            if (format != PROTOBUF && format.handshake == b) return format;
+        }
+        throw new IOException("Unknown wire format handshake " + b);
+    }
+
+    static boolean isHandshake(int firstByte) {
+        return (firstByte & HANDSHAKE_FLAG) != 0;
+    }
+
+    /**
+     * Для блокирующих серверов: прочитать рукопожатие, если клиент его прислал, и подтвердить.
+     * Без рукопожатия первый байт остаётся в потоке как начало размера первого кадра
+     */
+    static WireFormat acceptHandshake(BufferedInputStream in, OutputStream out) throws IOException {
+        in.mark(1);
+        int first = in.read();
+        if (first == -1 || !isHandshake(first)) {
+            in.reset();
+            return PROTOBUF;
+        }
+        WireFormat format = byHandshake(first);
+        out.write(first);
+        out.flush();
+        return format;
+    }
+
+    /**
+     * Разобрать тело запроса от {@code position} до {@code limit} в {@link ArrayCodec#values()}
+     */
+    int decodeRequest(ArrayCodec codec, ByteBuffer buf) throws InvalidProtocolBufferException {
+        return this == PROTOBUF ? codec.decode(buf) : codec.decodeRaw(buf);
+    }
+
+    int responseSize(ArrayCodec codec, int count) {
+        return switch (this) {
+            case PROTOBUF -> codec.encodedSize(count);
+            case RAW -> ArrayCodec.encodedSizeRaw(count);
+            case DELTA -> codec.encodedSizeDelta(count);
+        };
+    }
+
+    void encodeResponse(ArrayCodec codec, ByteBuffer buf, int count) {
+        switch (this) {
+            case PROTOBUF -> codec.encode(buf, count);
+            case RAW -> codec.encodeRaw(buf, count);
+            case DELTA -> codec.encodeDelta(buf, count);
+        }
+    }
+
+    /**
+     * Для клиента: разобрать тело ответа в {@link ArrayCodec#values()}
+     */
+    int decodeResponse(ArrayCodec codec, ByteBuffer buf) throws InvalidProtocolBufferException {
+        return switch (this) {
+            case PROTOBUF -> codec.decode(buf);
+            case RAW -> codec.decodeRaw(buf);
+            case DELTA -> codec.decodeDelta(buf);
+        };
+    }
+
+    /**
+     * Для клиента: тело запроса из чисел {@code values}
+     */
+    byte[] encodeRequest(int[] values) {
+        if (this == PROTOBUF) {
+            ArrayMessage.Builder builder = ArrayMessage.newBuilder();
+            for (int x : values) builder.addX(x);
+            return builder.build().toByteArray();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(ArrayCodec.encodedSizeRaw(values.length)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asIntBuffer().put(values);
+        return buf.array();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,92 @@
+package ru.itmo.mse.asurkis;
+
+import java.util.List;
+
+/**
+ * Задача обработки запроса в пуле worker'ов.
+ * Перегруженный пул может не выполнить её, а отклонить: тогда клиенту вместо ответа отправляется кадр ошибки.
+ * <p>
+ * Задачу с {@link Source} переполненный пул может отложить, не блокируя передающий поток:
+ * пока задача ждёт места в очереди, подключение не читает новые запросы.
+ */
+class WorkerTask implements Runnable {
+    /**
+     * Подключение, чтение которого можно приостановить
+     */
+    interface Source {
+        /**
+         * Запрос подключения отложен, пока в очереди пула нет места. Вызывается в передающем задачу потоке:
+         * в читающем или, для пачки, закрытой по окну {@link BatchingExecutor}, в потоке его таймера.
+         * Во втором случае читающий уже мог разрешить себе следующий запрос, и он будет прочитан
+         */
+        void pauseReading();
+
+        /**
+         * Отложенный запрос попал в очередь или отклонён. Вызывается в потоке worker'а или другого подключения
+         */
+        void resumeReading();
+    }
+
+    private final Runnable process;
+    private final Runnable reject;
+    private final Source source;
+
+    WorkerTask(Runnable process, Runnable reject) {
+        this(process, reject, null);
+    }
+
+    WorkerTask(Runnable process, Runnable reject, Source source) {
+        this.process = process;
+        this.reject = reject;
+        this.source = source;
+    }
+
+    @Override
+    public void run() {
+        process.run();
+    }
+
+    void reject() {
+        reject.run();
+    }
+
+    /**
+     * @return подключение задачи или {@code null}, если отложить её нельзя и передающий поток должен ждать
+     */
+    Source source() {
+        return source;
+    }
+
+    /**
+     * Отклонить задачу. Задачи, которые отклонить нельзя, выполняются в вызывающем потоке
+     */
+    static void reject(Runnable task) {
+        if (task instanceof WorkerTask workerTask) {
+            workerTask.reject();
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Подключения задач пачки: пачку можно отложить, только если можно отложить каждую её задачу
+     */
+    static Source sourceOf(List<Runnable> tasks) {
+        Source[] sources = new Source[tasks.size()];
+        for (int i = 0; i < sources.length; i++) {
+            if (!(tasks.get(i) instanceof WorkerTask task) || task.source == null) return null;
+            sources[i] = task.source;
+        }
+        return new Source() {
+            @Override
+            public void pauseReading() {
+                for (Source source : sources) source.pauseReading();
+            }
+
+            @Override
+            public void resumeReading() {
+                for (Source source : sources) source.resumeReading();
+            }
+        };
+    }
+}
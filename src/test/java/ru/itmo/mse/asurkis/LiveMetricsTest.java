@@ -0,0 +1,37 @@
+package ru.itmo.mse.asurkis;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Сервер можно остановить и снова запустить в той же JVM
+ */
+class LiveMetricsTest {
+    @Test
+    void restartsInSameJvm() throws Exception {
+        ObjectName name = new ObjectName("ru.itmo.mse.asurkis:type=LiveMetrics");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            LiveMetrics.start(pool);
+            // Второй сервер, запущенный до остановки первого, тоже не должен падать
+            LiveMetrics.start(pool);
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            LiveMetrics.stop();
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+            LiveMetrics.start(pool);
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+            LiveMetrics.stop();
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
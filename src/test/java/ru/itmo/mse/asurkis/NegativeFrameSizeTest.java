@@ -0,0 +1,90 @@
+package ru.itmo.mse.asurkis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Отрицательный размер из заголовка кадра отклоняется пулом буферов, а сервер закрывает подключение,
+ * не роняя цикл событий или обработчик завершения
+ */
+class NegativeFrameSizeTest {
+    @Test
+    void poolRejectsNegativeSize() throws IOException {
+        BufferPool pool = new BufferPool(64, 1 << 10, 1 << 20);
+        ByteBuffer buf = pool.lease(16);
+        assertThrows(IOException.class, () -> pool.lease(-1));
+        assertThrows(IOException.class, () -> pool.ensureLimit(buf, -1));
+        assertThrows(IOException.class, () -> pool.ensureLimit(buf, Integer.MIN_VALUE));
+        pool.release(buf);
+        assertEquals(0, pool.leasedBuffers());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"nonblocking", "async"})
+    void serverClosesConnection(String server) throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread serverThread = new Thread(() -> {
+            try {
+                if (server.equals("nonblocking")) {
+                    new NonBlockingServer(port).start(1);
+                } else {
+                    new AsyncServer(port).start(1);
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        try (Socket socket = connect(port)) {
+            socket.setSoTimeout(10_000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            // Без рукопожатия отрицательный размер неотличим от него: у первого байта установлен старший бит
+            out.write(WireFormat.RAW.handshake);
+            out.flush();
+            assertEquals(WireFormat.RAW.handshake, in.read());
+            out.writeInt(-1);
+            out.flush();
+            assertEquals(-1, in.read());
+        }
+
+        serverThread.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(serverThread.isAlive());
+        // Буфер подключения вернулся в пул
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (BufferPool.SHARED.leasedBuffers() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, BufferPool.SHARED.leasedBuffers());
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                // Сервер ещё не начал слушать
+                if (System.nanoTime() > deadline) throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+}
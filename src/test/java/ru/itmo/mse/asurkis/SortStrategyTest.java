@@ -0,0 +1,68 @@
+package ru.itmo.mse.asurkis;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Каждая стратегия должна давать тот же результат, что и {@link Arrays#sort(int[])}
+ */
+class SortStrategyTest {
+    /**
+     * Квадратичная сортировка на миллионе чисел не закончится за разумное время
+     */
+    private static final int QUADRATIC_MAX_SIZE = 1 << 13;
+
+    static Stream<Arguments> strategiesAndSizes() {
+        int radix = SortStrategy.RADIX_THRESHOLD;
+        int parallel = SortStrategy.PARALLEL_THRESHOLD;
+        int vector = SortStrategy.VECTOR_THRESHOLD;
+        // Вокруг порогов auto и порога последовательной сортировки ParallelMergeSort (8192)
+        int[] sizes = {0, 1, 2, 7, 63, vector - 1, vector, vector + 1, 1000, radix - 1, radix, radix + 1,
+                8193, 3 * 8192 + 5, parallel - 1, parallel, parallel + 1};
+        return Arrays.stream(SortStrategy.values())
+                .flatMap(strategy -> IntStream.of(sizes)
+                        .filter(size -> strategy != SortStrategy.QUADRATIC || size <= QUADRATIC_MAX_SIZE)
+                        .mapToObj(size -> Arguments.of(strategy, size)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("strategiesAndSizes")
+    void sortsLikeArraysSort(SortStrategy strategy, int size) {
+        Random random = new Random(size);
+        int[] values = random.ints(size).toArray();
+        // Отрицательные, граничные и повторяющиеся значения
+        for (int i = 0; i < size; i += 17) values[i] = Integer.MIN_VALUE;
+        for (int i = 5; i < size; i += 19) values[i] = Integer.MAX_VALUE;
+        for (int i = 3; i < size; i += 7) values[i] = -random.nextInt(10);
+        assertSortedLikeArraysSort(strategy, values, 0, size);
+    }
+
+    @ParameterizedTest
+    @MethodSource("strategiesAndSizes")
+    void sortsSubrange(SortStrategy strategy, int size) {
+        int[] values = new Random(size).ints(size + 10, -1000, 1000).toArray();
+        assertSortedLikeArraysSort(strategy, values, 3, size + 3);
+    }
+
+    @ParameterizedTest
+    @MethodSource("strategiesAndSizes")
+    void sortsReversed(SortStrategy strategy, int size) {
+        int[] values = IntStream.range(0, size).map(i -> size / 2 - i).toArray();
+        assertSortedLikeArraysSort(strategy, values, 0, size);
+    }
+
+    private static void assertSortedLikeArraysSort(SortStrategy strategy, int[] values, int from, int to) {
+        int[] expected = values.clone();
+        Arrays.sort(expected, from, to);
+        strategy.sort(values, from, to);
+        assertArrayEquals(expected, values);
+    }
+}
@@ -0,0 +1,151 @@
+package ru.itmo.mse.asurkis;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import org.junit.jupiter.api.Test;
+import ru.itmo.mse.asurkis.Messages.ArrayMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Разбор запроса по частям, сброс серий в файл и слияние должны давать тот же ответ,
+ * что и {@link ArrayMessage} с отсортированными числами
+ */
+class StreamingSortTest {
+    private static final int RUN_LENGTH = 1000;
+    private static final Path SPILL_DIR;
+
+    static {
+        // Параметры читаются при загрузке StreamingSort, поэтому задаём их до первого обращения к нему.
+        // Маленькие серии, чтобы даже небольшой запрос сбрасывался в файл
+        try {
+            SPILL_DIR = Files.createTempDirectory("streaming-sort-test");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Options.parse(new String[]{"--stream-run-length=" + RUN_LENGTH, "--stream-spill-dir=" + SPILL_DIR});
+    }
+
+    @Test
+    void sortsUnpackedInMemory() throws IOException {
+        int[] values = randomValues(RUN_LENGTH / 2, 1);
+        assertRoundTrip(values, unpacked(values), false);
+    }
+
+    @Test
+    void sortsUnpackedWithSpill() throws IOException {
+        int[] values = randomValues(RUN_LENGTH * 7 + 13, 2);
+        assertRoundTrip(values, unpacked(values), true);
+    }
+
+    @Test
+    void sortsPackedWithSpill() throws IOException {
+        int[] values = randomValues(RUN_LENGTH * 5 + 1, 3);
+        assertRoundTrip(values, packed(values), true);
+    }
+
+    @Test
+    void sortsExactlyFullRuns() throws IOException {
+        int[] values = randomValues(RUN_LENGTH * 3, 4);
+        assertRoundTrip(values, unpacked(values), true);
+    }
+
+    @Test
+    void skipsUnknownFields() throws IOException {
+        int[] values = randomValues(RUN_LENGTH * 2 + 500, 5);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        for (int i = 0; i < values.length; i++) {
+            out.writeInt32(1, values[i]);
+            // Поля других номеров всех поддерживаемых типов
+            switch (i % 5) {
+                case 0 -> out.writeInt64(2, -1L - i);
+                case 1 -> out.writeFixed64(3, i);
+                case 2 -> out.writeString(4, "unknown field " + i);
+                case 3 -> out.writeFixed32(5, i);
+                default -> out.writeBytes(6, ByteString.copyFrom(new byte[300]));
+            }
+        }
+        out.flush();
+        assertRoundTrip(values, bytes.toByteArray(), true);
+    }
+
+    private static void assertRoundTrip(int[] values, byte[] request, boolean spills) throws IOException {
+        int[] expected = values.clone();
+        Arrays.sort(expected);
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        StreamingSort sort = new StreamingSort();
+        try (sort) {
+            sort.read(new ChunkedInputStream(request), request.length);
+            assertEquals(spills, spillFiles() > 0);
+            sort.writeTo(response);
+            assertEquals(sort.encodedSize(), response.size());
+        }
+        assertEquals(0, spillFiles());
+
+        // Ответ — отсортированные числа в обычном protobuf-кодировании
+        assertArrayEquals(expected, ArrayMessage.parseFrom(response.toByteArray()).getXList().stream()
+                .mapToInt(Integer::intValue).toArray());
+        assertArrayEquals(ArrayMessage.newBuilder().addAllX(Arrays.stream(expected).boxed().toList())
+                .build().toByteArray(), response.toByteArray());
+    }
+
+    private static long spillFiles() throws IOException {
+        try (Stream<Path> files = Files.list(SPILL_DIR)) {
+            return files.count();
+        }
+    }
+
+    private static int[] randomValues(int n, long seed) {
+        Random random = new Random(seed);
+        int[] values = random.ints(n).toArray();
+        // Отрицательные числа занимают в varint 10 байт, а граничные проверяют знак при слиянии
+        for (int i = 0; i < n; i += 11) values[i] = -random.nextInt(100);
+        for (int i = 3; i < n; i += 97) values[i] = Integer.MIN_VALUE;
+        for (int i = 5; i < n; i += 89) values[i] = Integer.MAX_VALUE;
+        return values;
+    }
+
+    private static byte[] unpacked(int[] values) {
+        return ArrayMessage.newBuilder().addAllX(Arrays.stream(values).boxed().toList()).build().toByteArray();
+    }
+
+    private static byte[] packed(int[] values) throws IOException {
+        int length = 0;
+        for (int value : values) length += CodedOutputStream.computeInt32SizeNoTag(value);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.writeTag(1, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(length);
+        for (int value : values) out.writeInt32NoTag(value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Отдаёт данные маленькими кусками, чтобы поля разрывались между чтениями
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        ChunkedInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ru.itmo.mse.asurkis;
+
+import jdk.incubator.vector.IntVector;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Векторная сортировка должна давать тот же результат, что и {@link Arrays#sort(int[])},
+ * в том числе на хвостах короче вектора, которые дополняются {@link Integer#MAX_VALUE}
+ */
+class VectorSortTest {
+    private static final int LANES = IntVector.SPECIES_PREFERRED.length();
+
+    enum Input {
+        RANDOM(size -> new Random(size).ints(size).toArray()),
+        DUPLICATES(size -> new Random(size).ints(size, -3, 3).toArray()),
+        BOUNDS(size -> new Random(size).ints(size)
+                .map(x -> x % 3 == 0 ? Integer.MIN_VALUE : x % 3 == 1 ? Integer.MAX_VALUE : x).toArray()),
+        REVERSED(size -> IntStream.range(0, size).map(i -> size / 2 - i).toArray());
+
+        final IntFunction<int[]> generator;
+
+        Input(IntFunction<int[]> generator) {
+            this.generator = generator;
+        }
+    }
+
+    static Stream<Arguments> inputsAndSizes() {
+        // Вокруг одного вектора, нескольких векторов и порога стратегии VECTOR в auto
+        int[] sizes = {0, 1, 2, LANES - 1, LANES, LANES + 1, 2 * LANES - 1, 3 * LANES + 1, 100, 257,
+                SortStrategy.VECTOR_THRESHOLD - 1, SortStrategy.VECTOR_THRESHOLD + 1, 1000, 4099};
+        return Arrays.stream(Input.values())
+                .flatMap(input -> IntStream.of(sizes).mapToObj(size -> Arguments.of(input, size)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("inputsAndSizes")
+    void vectorSortSortsLikeArraysSort(Input input, int size) {
+        assumeTrue(SortStrategy.VECTOR_AVAILABLE);
+        int[] values = input.generator.apply(size);
+        int[] expected = values.clone();
+        Arrays.sort(expected);
+        VectorSort.sort(values, 0, size);
+        assertArrayEquals(expected, values);
+    }
+
+    @ParameterizedTest
+    @MethodSource("inputsAndSizes")
+    void vectorSortSortsSubrange(Input input, int size) {
+        assumeTrue(SortStrategy.VECTOR_AVAILABLE);
+        // Подотрезок с ненулевым началом, края массива не должны измениться
+        int from = 5;
+        int[] values = input.generator.apply(size + from + 3);
+        int[] expected = values.clone();
+        Arrays.sort(expected, from, from + size);
+        VectorSort.sort(values, from, from + size);
+        assertArrayEquals(expected, values);
+    }
+
+    @ParameterizedTest
+    @MethodSource("inputsAndSizes")
+    void strategySortsLikeArraysSort(Input input, int size) {
+        int[] values = input.generator.apply(size + 7);
+        int[] expected = values.clone();
+        Arrays.sort(expected, 7, size + 7);
+        SortStrategy.VECTOR.sort(values, 7, size + 7);
+        assertArrayEquals(expected, values);
+    }
+}